@@ -1,22 +1,34 @@
 package org.mineacademy.bfo.bungee;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import org.mineacademy.bfo.Common;
 import org.mineacademy.bfo.Valid;
 import org.mineacademy.bfo.bungee.message.IncomingMessage;
+import org.mineacademy.bfo.bungee.message.MessageBatcher;
+import org.mineacademy.bfo.bungee.message.MessageDispatcher;
+import org.mineacademy.bfo.bungee.message.MessageDispatcher.Backpressure;
+import org.mineacademy.bfo.bungee.message.MessageDispatcher.DispatchKey;
+import org.mineacademy.bfo.bungee.message.MessageFrame;
+import org.mineacademy.bfo.bungee.message.MessageMetrics;
+import org.mineacademy.bfo.bungee.message.MessageReassembler;
 import org.mineacademy.bfo.bungee.message.OutgoingMessage;
+import org.mineacademy.bfo.bungee.message.PendingRequests;
+import org.mineacademy.bfo.bungee.message.ServerMessageQueue;
 import org.mineacademy.bfo.debug.Debugger;
 
-import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
 import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.Connection;
 import net.md_5.bungee.api.connection.Server;
 import net.md_5.bungee.api.event.PluginMessageEvent;
+import net.md_5.bungee.api.event.ServerConnectedEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 
@@ -29,9 +41,16 @@ import net.md_5.bungee.event.EventHandler;
 public abstract class BungeeListener implements Listener {
 
 	/**
-	 * Holds registered bungee listeners
+	 * Holds registered bungee listeners by their channel, this map is never modified,
+	 * we replace it with a new copy when registering a listener so it can be read
+	 * from any thread without locking
 	 */
-	private static final Set<BungeeListener> registeredListeners = new HashSet<>();
+	private static volatile Map<String, BungeeListener> registeredListeners = Collections.emptyMap();
+
+	/**
+	 * Holds the message the current thread is handling, see {@link #getSender()}
+	 */
+	private static final ThreadLocal<IncomingMessage> handledMessage = new ThreadLocal<>();
 
 	/**
 	 * The channel
@@ -46,22 +65,20 @@ public abstract class BungeeListener implements Listener {
 	private final BungeeMessageType[] actions;
 
 	/**
-	 * Temporary variable storing the senders connection
+	 * The actions by their name
 	 */
-	@Getter(value = AccessLevel.PROTECTED)
-	private Server sender;
+	private final Map<String, BungeeMessageType> actionsByName = new HashMap<>();
 
 	/**
-	 * Temporary variable storing the receiver
+	 * Joins messages that were split into chunks
 	 */
-	@Getter(value = AccessLevel.PROTECTED)
-	private Connection receiver;
+	private final MessageReassembler reassembler = new MessageReassembler();
 
 	/**
-	 * Temporary variable for reading data
+	 * Handles messages on separate threads, created on the first message
+	 * if {@link #getDispatchThreads()} is positive
 	 */
-	@Getter(value = AccessLevel.PROTECTED)
-	private byte[] data;
+	private volatile MessageDispatcher dispatcher;
 
 	/**
 	 * Create a new bungee suite with the given params
@@ -74,11 +91,23 @@ public abstract class BungeeListener implements Listener {
 		this.channel = channel;
 		this.actions = toActions(actionEnum);
 
-		for (final BungeeListener listener : registeredListeners)
-			if (listener.getChannel().equals(this.getChannel()))
-				return;
+		for (final BungeeMessageType action : this.actions)
+			this.actionsByName.put(action.name(), action);
+
+		register(this);
+	}
+
+	/*
+	 * Register the listener unless its channel is already taken
+	 */
+	private static synchronized void register(BungeeListener listener) {
+		if (registeredListeners.containsKey(listener.getChannel()))
+			return;
 
-		registeredListeners.add(this);
+		final Map<String, BungeeListener> copy = new HashMap<>(registeredListeners);
+		copy.put(listener.getChannel(), listener);
+
+		registeredListeners = Collections.unmodifiableMap(copy);
 	}
 
 	private static BungeeMessageType[] toActions(@NonNull Class<? extends BungeeMessageType> actionEnum) {
@@ -95,9 +124,153 @@ public abstract class BungeeListener implements Listener {
 		}
 	}
 
+	/**
+	 * Return the action by its name, or null if not found
+	 *
+	 * @param name
+	 * @return
+	 */
+	public final BungeeMessageType getAction(String name) {
+		return this.actionsByName.get(name);
+	}
+
+	/**
+	 * Return the action by its position in the action enum, or null if not found
+	 *
+	 * @param ordinal
+	 * @return
+	 */
+	public final BungeeMessageType getAction(int ordinal) {
+		return ordinal >= 0 && ordinal < this.actions.length ? this.actions[ordinal] : null;
+	}
+
+	/**
+	 * Return true to send messages on this channel with the compact (v2) header
+	 * carrying the action number and binary sender UUID instead of three strings.
+	 * <p>
+	 * Incoming messages are always accepted in both formats. Only enable this when all
+	 * servers on your network run a version able to read compact headers.
+	 *
+	 * @return false by default
+	 */
+	public boolean useCompactHeader() {
+		return false;
+	}
+
+	/**
+	 * Return the size in bytes above which the data of outgoing messages are compressed.
+	 * Only applies when {@link #useCompactHeader()} is enabled.
+	 *
+	 * @return -1 by default, which never compresses
+	 */
+	public int getCompressionThreshold() {
+		return -1;
+	}
+
+	/**
+	 * Return how many ticks to collect outgoing messages for each server before sending
+	 * them together in one plugin message, see {@link MessageBatcher}.
+	 * <p>
+	 * Incoming batches are always unpacked. Only enable this when all
+	 * servers on your network run a version able to read batches.
+	 *
+	 * @return -1 by default, which sends each message immediately
+	 */
+	public int getBatchWindowTicks() {
+		return -1;
+	}
+
+	/**
+	 * Return how many bytes of outgoing messages to collect for each server
+	 * before sending them immediately, see {@link #getBatchWindowTicks()}
+	 * <p>
+	 * Batches never exceed {@link #getMaxFrameSize()}, larger values are lowered to it
+	 *
+	 * @return
+	 */
+	public int getBatchMaxBytes() {
+		return 30_000;
+	}
+
+	/**
+	 * Return the maximum size of a single plugin message, larger messages
+	 * are split into chunks and joined back by the receiving side,
+	 * see {@link MessageReassembler}
+	 *
+	 * @return 32 000 by default, which fits the plugin message limit, or -1 to never split
+	 */
+	public int getMaxFrameSize() {
+		return 32_000;
+	}
+
+	/**
+	 * Return how many ticks to wait for a response to a request before failing it,
+	 * see {@link #request(ServerInfo, BungeeMessageType, Object...)}
+	 *
+	 * @return
+	 */
+	public int getRequestTimeoutTicks() {
+		return 5 * 20;
+	}
+
+	/**
+	 * Return how many threads to handle incoming messages on. When positive,
+	 * {@link #onMessageReceived(Connection, IncomingMessage)} is no longer called on the
+	 * network thread so you can safely access files or databases there,
+	 * see {@link MessageDispatcher}
+	 *
+	 * @return 0 by default, which handles messages on the network thread
+	 */
+	public int getDispatchThreads() {
+		return 0;
+	}
+
+	/**
+	 * Return how many messages may wait to be handled on each dispatch thread,
+	 * see {@link #getDispatchThreads()}
+	 *
+	 * @return
+	 */
+	public int getDispatchQueueCapacity() {
+		return 1_000;
+	}
+
+	/**
+	 * Return what to do with incoming messages when a dispatch queue is full,
+	 * see {@link #getDispatchThreads()}
+	 *
+	 * @return
+	 */
+	public Backpressure getDispatchBackpressure() {
+		return Backpressure.BLOCK;
+	}
+
+	/**
+	 * Return which messages must be handled in the order they arrived,
+	 * see {@link #getDispatchThreads()}
+	 *
+	 * @return
+	 */
+	public DispatchKey getDispatchKey() {
+		return DispatchKey.SERVER;
+	}
+
+	/**
+	 * Return the dispatcher handling messages on separate threads,
+	 * or null if messages are handled on the network thread
+	 *
+	 * @return
+	 */
+	public final MessageDispatcher getDispatcher() {
+		return this.dispatcher;
+	}
+
 	/**
 	 * Called automatically when you receive a plugin message from Bungeecord,
 	 * see https://spigotmc.org/wiki/bukkit-bungee-plugin-messaging-channel
+	 * <p>
+	 * Messages may be received on multiple threads at once, use the sender,
+	 * receiver and data from the given message which belong to it only.
 	 *
 	 * @param sender
 	 * @param message
@@ -107,13 +280,91 @@ public abstract class BungeeListener implements Listener {
 	/**
 	 * Creates a new outgoing message for the given action using the sender connection
 	 * and this listeners channel
+	 * <p>
+	 * Only call this while handling a message, otherwise use {@link #createOutgoingMessage(IncomingMessage, UUID, BungeeMessageType)}
 	 *
 	 * @param senderUid
 	 * @param messageType
 	 * @return
 	 */
 	protected final OutgoingMessage createOutgoingMessage(UUID senderUid, BungeeMessageType messageType) {
-		return new OutgoingMessage(senderUid, sender.getInfo().getName(), messageType);
+		return this.createOutgoingMessage(getHandledMessage(), senderUid, messageType);
+	}
+
+	/**
+	 * Creates a new outgoing message for the given action using the connection
+	 * that sent the given message and this listeners channel
+	 *
+	 * @param message
+	 * @param senderUid
+	 * @param messageType
+	 * @return
+	 */
+	protected final OutgoingMessage createOutgoingMessage(@NonNull IncomingMessage message, UUID senderUid, BungeeMessageType messageType) {
+		return new OutgoingMessage(this, message.getSender().getInfo().getName(), senderUid, messageType);
+	}
+
+	/**
+	 * Send a request to the given server on this listeners channel, returning a future
+	 * completed with its response or failed after {@link #getRequestTimeoutTicks()}.
+	 * <p>
+	 * The server replies using {@link IncomingMessage#reply(Object...)}, responses
+	 * complete the future and are not passed to {@link #onMessageReceived(Connection, IncomingMessage)}.
+	 * The future completes on the thread receiving the response, never block it.
+	 *
+	 * @param server
+	 * @param action
+	 * @param payload the values to write, see {@link OutgoingMessage#write(Object...)}
+	 * @return
+	 */
+	public final CompletableFuture<IncomingMessage> request(ServerInfo server, BungeeMessageType action, Object... payload) {
+		return PendingRequests.send(this, server, action, this.getRequestTimeoutTicks(), payload);
+	}
+
+	/**
+	 * Return the connection that sent the message handled on this thread
+	 *
+	 * @deprecated not safe when handling messages outside of {@link #onMessageReceived(Connection, IncomingMessage)},
+	 * use {@link IncomingMessage#getSender()}
+	 * @return
+	 */
+	@Deprecated
+	protected final Server getSender() {
+		return getHandledMessage().getSender();
+	}
+
+	/**
+	 * Return the connection that received the message handled on this thread
+	 *
+	 * @deprecated not safe when handling messages outside of {@link #onMessageReceived(Connection, IncomingMessage)},
+	 * use {@link IncomingMessage#getReceiver()}
+	 * @return
+	 */
+	@Deprecated
+	protected final Connection getReceiver() {
+		return getHandledMessage().getReceiver();
+	}
+
+	/**
+	 * Return the raw data of the message handled on this thread
+	 *
+	 * @deprecated not safe when handling messages outside of {@link #onMessageReceived(Connection, IncomingMessage)},
+	 * use {@link IncomingMessage#getData()}
+	 * @return
+	 */
+	@Deprecated
+	protected final byte[] getData() {
+		return getHandledMessage().getData();
+	}
+
+	/*
+	 * Return the message handled on this thread or throw an error if none
+	 */
+	private static IncomingMessage getHandledMessage() {
+		final IncomingMessage message = handledMessage.get();
+		Valid.checkNotNull(message, "No bungee message is being handled on thread " + Thread.currentThread().getName());
+
+		return message;
 	}
 
 	/**
@@ -130,6 +381,11 @@ public abstract class BungeeListener implements Listener {
 		return obj instanceof BungeeListener && ((BungeeListener) obj).getChannel().equals(this.getChannel());
 	}
 
+	@Override
+	public int hashCode() {
+		return this.channel.hashCode();
+	}
+
 	/**
 	 * Distributes received plugin message across all {@link BungeeListener} classes
 	 *
@@ -160,17 +416,98 @@ public abstract class BungeeListener implements Listener {
 			if (!(sender instanceof Server))
 				return;
 
-			for (final BungeeListener listener : registeredListeners)
-				if (tag.equals(listener.getChannel())) {
-					listener.sender = (Server) sender;
-					listener.receiver = receiver;
-					listener.data = event.getData();
+			final BungeeListener listener = registeredListeners.get(tag);
+
+			if (listener != null)
+				this.dispatch(listener, (Server) sender, receiver, event.getData());
+		}
+
+		/**
+		 * Send messages stored while the server was empty
+		 *
+		 * @param event
+		 */
+		@EventHandler
+		public void onServerConnected(ServerConnectedEvent event) {
+			ServerMessageQueue.drainTo(event.getServer());
+		}
+
+		/*
+		 * Unpack batches, join chunks and pass each message to the listener
+		 */
+		private void dispatch(BungeeListener listener, Server sender, Connection receiver, byte[] data) {
+			if (MessageFrame.isBatch(data)) {
+				for (final byte[] frame : MessageFrame.unpackBatch(data))
+					this.dispatch(listener, sender, receiver, frame);
+
+				return;
+			}
+
+			if (MessageFrame.isChunk(data)) {
+				final byte[] frame = listener.reassembler.add(sender.getInfo().getName(), data, listener.getMaxFrameSize());
+
+				if (frame != null)
+					this.dispatch(listener, sender, receiver, frame);
+
+				return;
+			}
+
+			final long start = System.nanoTime();
+			final IncomingMessage message = new IncomingMessage(listener, sender, receiver, data);
+			final MessageMetrics metrics = message.getMetrics();
+
+			metrics.recordDecode(System.nanoTime() - start);
+			metrics.recordIn(data.length);
+
+			if (message.isResponse()) {
+				PendingRequests.complete(message);
+
+				return;
+			}
+
+			if (Debugger.isDebugged("bungee"))
+				Debugger.debug("bungee", "Channel " + message.getChannel() + " received " + message.getAction() + " message from " + message.getServerName() + " server.");
+
+			if (listener.getDispatchThreads() > 0)
+				this.getDispatcher(listener).dispatch(message);
+			else
+				this.handle(listener, message);
+		}
+
+		/*
+		 * Return the dispatcher for the given listener, creating it on first call
+		 * or again after it was shut down such as when the plugin reloaded
+		 */
+		private MessageDispatcher getDispatcher(BungeeListener listener) {
+			MessageDispatcher dispatcher = listener.dispatcher;
 
-					final IncomingMessage message = new IncomingMessage(listener.data);
+			if (dispatcher == null || dispatcher.isShutdown())
+				synchronized (listener) {
+					dispatcher = listener.dispatcher;
 
-					Debugger.debug("bungee", "Channel " + message.getChannel() + " received " + message.getAction() + " message from " + message.getServerName() + " server.");
-					listener.onMessageReceived(listener.sender, message);
+					if (dispatcher == null || dispatcher.isShutdown())
+						listener.dispatcher = dispatcher = new MessageDispatcher(listener, message -> this.handle(listener, message));
 				}
+
+			return dispatcher;
+		}
+
+		/*
+		 * Pass the message to the listener
+		 */
+		private void handle(BungeeListener listener, IncomingMessage message) {
+			final long start = System.nanoTime();
+
+			handledMessage.set(message);
+
+			try {
+				listener.onMessageReceived(message.getSender(), message);
+
+			} finally {
+				handledMessage.remove();
+
+				message.getMetrics().recordHandler(System.nanoTime() - start);
+			}
 		}
 	}
 }
\ No newline at end of file
@@ -1,7 +1,6 @@
 package org.mineacademy.bfo.bungee.message;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 import org.mineacademy.bfo.ReflectionUtil;
@@ -12,9 +11,6 @@ import org.mineacademy.bfo.collection.SerializedMap;
 import org.mineacademy.bfo.debug.Debugger;
 import org.mineacademy.bfo.plugin.SimplePlugin;
 
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteStreams;
-
 import lombok.Getter;
 import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.config.ServerInfo;
@@ -24,12 +20,27 @@ import net.md_5.bungee.api.connection.Server;
 /**
  * Represents an incoming plugin message.
  * <p>
+ * Each message holds the connections it travelled between so it can
+ * be safely handled on any thread.
+ * <p>
  * NB: This uses the standardized Foundation model where the first
  * string is the server name and the second string is the
  * {@link BungeeMessageType} by its name *read automatically*.
  */
 public final class IncomingMessage extends Message {
 
+	/**
+	 * The connection that sent this message, or null if not received from a server
+	 */
+	@Getter
+	private final Server sender;
+
+	/**
+	 * The connection that received this message, or null if not received from a server
+	 */
+	@Getter
+	private final Connection receiver;
+
 	/**
 	 * The raw byte array to read from
 	 */
@@ -37,14 +48,52 @@ public final class IncomingMessage extends Message {
 	private final byte[] data;
 
 	/**
-	 * The input we use to read our data array
+	 * The reader for the data after the header, created when
+	 * first reading if the data are compressed
+	 */
+	private MessageReader reader;
+
+	/**
+	 * Is this a compact (v2) frame? See {@link MessageFrame}
+	 */
+	private final boolean compact;
+
+	/**
+	 * Where the compressed data start, or -1 if not compressed
+	 */
+	private int compressedOffset = -1;
+
+	/**
+	 * Where the sender UUID starts
 	 */
-	private final ByteArrayDataInput input;
+	private int senderUidOffset = -1;
 
 	/**
-	 * The internal stream
+	 * Where the server name starts
 	 */
-	private final ByteArrayInputStream stream;
+	private int serverNameOffset = -1;
+
+	/**
+	 * The sender UUID, or null until first decoded. Decoding twice from different
+	 * threads gives the same value so we need no locking
+	 */
+	private volatile UUID decodedSenderUid;
+
+	/**
+	 * The server name, or null until first decoded
+	 */
+	private volatile String decodedServerName;
+
+	/**
+	 * The request flag of this message, see {@link MessageFrame#FLAG_REQUEST}
+	 */
+	private int requestFlags = 0;
+
+	/**
+	 * The id of the request this message is or responds to, or 0
+	 */
+	@Getter
+	private int requestId = 0;
 
 	/**
 	 * Create a new incoming message from the given array
@@ -70,25 +119,194 @@ public final class IncomingMessage extends Message {
 	 * @param data
 	 */
 	public IncomingMessage(BungeeListener listener, byte[] data) {
+		this(listener, null, null, data);
+	}
+
+	/**
+	 * Create a new incoming message from the given array received
+	 * from the given server connection
+	 * <p>
+	 * NB: This uses the standardized Foundation model where the first
+	 * string is the server name and the second string is the
+	 * {@link BungeeMessageType} by its name *read automatically*.
+	 * <p>
+	 * Only the action is decoded now, the sender UUID and server name
+	 * are decoded when first accessed and the data when first read.
+	 *
+	 * @param listener
+	 * @param sender
+	 * @param receiver
+	 * @param data
+	 */
+	public IncomingMessage(BungeeListener listener, Server sender, Connection receiver, byte[] data) {
 		super(listener);
 
+		this.sender = sender;
+		this.receiver = receiver;
 		this.data = data;
-		this.stream = new ByteArrayInputStream(data);
-		this.input = ByteStreams.newDataInput(stream);
+		this.compact = MessageFrame.isCompact(data);
+
+		final MessageReader header = new MessageReader(data, 0, data.length);
+
+		if (this.compact) {
+
+			// See MessageFrame for the header layout
+			header.readByte();
+			final byte flags = header.readByte();
+
+			setAction(header.readVarInt());
+
+			this.senderUidOffset = header.position();
+			header.skip(16);
+
+			this.serverNameOffset = header.position();
+			header.skipString();
+
+			this.requestFlags = flags & (MessageFrame.FLAG_REQUEST | MessageFrame.FLAG_RESPONSE);
+
+			if (this.requestFlags != 0)
+				this.requestId = header.readVarInt();
+
+			// Decompress when reading the first value
+			if ((flags & MessageFrame.FLAG_COMPRESSED) != 0)
+				this.compressedOffset = header.position();
+			else
+				this.reader = header;
+
+		} else {
+
+			// -----------------------------------------------------------------
+			// We are automatically reading the first two strings assuming the
+			// first is the senders server name and the second is the action
+			// -----------------------------------------------------------------
+
+			// Skip senders UUID
+			this.senderUidOffset = header.position();
+			header.skipUTF();
+
+			// Skip server name
+			this.serverNameOffset = header.position();
+			header.skipUTF();
+
+			// Read action, found by its name in the listener
+			setAction(header.readUTF());
+
+			this.reader = header;
+		}
+	}
+
+	/**
+	 * Return the UUID of the sender who initiated the packet, decoding it on first call
+	 *
+	 * @return
+	 */
+	@Override
+	public UUID getSenderUid() {
+		UUID senderUid = this.decodedSenderUid;
+
+		if (senderUid == null) {
+			if (this.compact) {
+				final ByteBuffer buffer = ByteBuffer.wrap(this.data);
+
+				senderUid = new UUID(buffer.getLong(this.senderUidOffset), buffer.getLong(this.senderUidOffset + 8));
+
+			} else {
+				final String raw = MessageReader.decodeUTF(this.data, this.senderUidOffset);
+
+				try {
+					senderUid = UUID.fromString(raw);
+
+				} catch (final IllegalArgumentException ex) {
+					throw new IllegalArgumentException("Expected UUID, got " + raw + " for packet " + getAction() + " from server " + this.getServerName());
+				}
+			}
+
+			this.decodedSenderUid = senderUid;
+		}
+
+		return senderUid;
+	}
 
-		// -----------------------------------------------------------------
-		// We are automatically reading the first two strings assuming the
-		// first is the senders server name and the second is the action
-		// -----------------------------------------------------------------
+	/**
+	 * Return the name of the server this message is coming from, decoding it on first call
+	 *
+	 * @return
+	 */
+	@Override
+	public String getServerName() {
+		String serverName = this.decodedServerName;
+
+		if (serverName == null) {
+			serverName = this.compact ? MessageReader.decodeString(this.data, this.serverNameOffset) : MessageReader.decodeUTF(this.data, this.serverNameOffset);
+
+			this.decodedServerName = serverName;
+		}
+
+		return serverName;
+	}
+
+	/*
+	 * Return the reader, decompressing the data if needed
+	 */
+	private MessageReader reader() {
+		if (this.reader == null) {
+			final ByteBuffer buffer = ByteBuffer.wrap(this.data, this.compressedOffset, this.data.length - this.compressedOffset);
+			final int originalLength = MessageFrame.readVarInt(buffer);
+			final byte[] decompressed = MessageFrame.decompress(this.data, buffer.position(), buffer.remaining(), originalLength);
+
+			this.reader = new MessageReader(decompressed, 0, decompressed.length);
+		}
+
+		return this.reader;
+	}
+
+	/*
+	 * Read a string in the format of the frame
+	 */
+	private String readUTF() {
+		return this.compact ? reader().readString() : reader().readUTF();
+	}
+
+	/**
+	 * Skip the next value without decoding it, such as when
+	 * your listener does not need it
+	 */
+	public void skip() {
+		final Class<?> type = getNextField();
+		final MessageReader reader = reader();
+
+		moveHead(type);
+
+		if (type == Boolean.class || type == Byte.class)
+			reader.skip(1);
+
+		else if (type == Short.class)
+			reader.skip(2);
 
-		// Read senders UUID
-		setSenderUid(input.readUTF());
+		else if (type == Integer.class || type == Float.class)
+			reader.skip(4);
 
-		// Read server name
-		setServerName(input.readUTF());
+		else if (type == Long.class || type == Double.class)
+			reader.skip(8);
 
-		// Read action
-		setAction(input.readUTF());
+		else if (type == byte[].class)
+			reader.skip(reader.remaining());
+
+		else if (this.compact)
+			reader.skipString();
+
+		else
+			reader.skipUTF();
+	}
+
+	/**
+	 * Skip the given amount of next values without decoding them
+	 *
+	 * @param count
+	 */
+	public void skip(int count) {
+		for (int i = 0; i < count; i++)
+			this.skip();
 	}
 
 	/**
@@ -99,7 +317,7 @@ public final class IncomingMessage extends Message {
 	public String readString() {
 		moveHead(String.class);
 
-		return input.readUTF();
+		return readUTF();
 	}
 
 	/**
@@ -110,7 +328,7 @@ public final class IncomingMessage extends Message {
 	public UUID readUUID() {
 		moveHead(UUID.class);
 
-		return UUID.fromString(input.readUTF());
+		return UUID.fromString(readUTF());
 	}
 
 	/**
@@ -119,9 +337,9 @@ public final class IncomingMessage extends Message {
 	 * @return
 	 */
 	public SerializedMap readMap() {
-		moveHead(String.class);
+		moveHead(SerializedMap.class);
 
-		return SerializedMap.fromJson(input.readUTF());
+		return SerializedMap.fromJson(readUTF());
 	}
 
 	/**
@@ -134,7 +352,7 @@ public final class IncomingMessage extends Message {
 	public <T extends Enum<T>> T readEnum(Class<T> typeOf) {
 		moveHead(typeOf);
 
-		return ReflectionUtil.lookupEnum(typeOf, input.readUTF());
+		return ReflectionUtil.lookupEnum(typeOf, readUTF());
 	}
 
 	/**
@@ -145,7 +363,7 @@ public final class IncomingMessage extends Message {
 	public boolean readBoolean() {
 		moveHead(Boolean.class);
 
-		return input.readBoolean();
+		return reader().readBoolean();
 	}
 
 	/**
@@ -156,7 +374,7 @@ public final class IncomingMessage extends Message {
 	public byte readByte() {
 		moveHead(Byte.class);
 
-		return input.readByte();
+		return reader().readByte();
 	}
 
 	/**
@@ -167,16 +385,7 @@ public final class IncomingMessage extends Message {
 	public byte[] readBytes() {
 		moveHead(byte[].class);
 
-		final byte[] array = new byte[stream.available()];
-
-		try {
-			stream.read(array);
-
-		} catch (final IOException e) {
-			e.printStackTrace();
-		}
-
-		return array;
+		return reader().readRemaining();
 	}
 
 	/**
@@ -187,7 +396,7 @@ public final class IncomingMessage extends Message {
 	public double readDouble() {
 		moveHead(Double.class);
 
-		return input.readDouble();
+		return reader().readDouble();
 	}
 
 	/**
@@ -198,7 +407,7 @@ public final class IncomingMessage extends Message {
 	public float readFloat() {
 		moveHead(Float.class);
 
-		return input.readFloat();
+		return reader().readFloat();
 	}
 
 	/**
@@ -206,10 +415,21 @@ public final class IncomingMessage extends Message {
 	 *
 	 * @return
 	 */
-	public int writeInt() {
+	public int readInt() {
 		moveHead(Integer.class);
 
-		return input.readInt();
+		return reader().readInt();
+	}
+
+	/**
+	 * Read an integer from the data
+	 *
+	 * @deprecated misnamed, use {@link #readInt()}
+	 * @return
+	 */
+	@Deprecated
+	public int writeInt() {
+		return this.readInt();
 	}
 
 	/**
@@ -220,7 +440,7 @@ public final class IncomingMessage extends Message {
 	public long readLong() {
 		moveHead(Long.class);
 
-		return input.readLong();
+		return reader().readLong();
 	}
 
 	/**
@@ -231,7 +451,7 @@ public final class IncomingMessage extends Message {
 	public short readShort() {
 		moveHead(Short.class);
 
-		return input.readShort();
+		return reader().readShort();
 	}
 
 	/**
@@ -244,13 +464,21 @@ public final class IncomingMessage extends Message {
 		final Server server = (Server) connection;
 
 		if (server.getInfo().getPlayers().isEmpty()) {
-			Debugger.debug("bungee", "NOT sending data on " + getChannel() + " channel from " + getAction() + " to " + server.getInfo().getName() + " server because it is empty.");
+			getMetrics().recordEmptyServerDrop();
+
+			if (Debugger.isDebugged("bungee"))
+				Debugger.debug("bungee", "NOT sending data on " + getChannel() + " channel from " + getAction() + " to " + server.getInfo().getName() + " server because it is empty.");
 
 			return;
 		}
 
-		server.sendData(getChannel(), data);
-		Debugger.debug("bungee", "Forwarding data on " + getChannel() + " channel from " + getAction() + " to " + ((Server) connection).getInfo().getName() + " server.");
+		for (final byte[] frame : MessageFrame.split(data, getListener().getMaxFrameSize()))
+			server.sendData(getChannel(), frame);
+
+		getMetrics().recordOut(data.length);
+
+		if (Debugger.isDebugged("bungee"))
+			Debugger.debug("bungee", "Forwarding data on " + getChannel() + " channel from " + getAction() + " to " + ((Server) connection).getInfo().getName() + " server.");
 	}
 
 	/**
@@ -272,6 +500,49 @@ public final class IncomingMessage extends Message {
 			forward(server);
 	}
 
+	/**
+	 * Return true if the sender awaits a response, see {@link #reply(Object...)}
+	 *
+	 * @return
+	 */
+	public boolean isRequest() {
+		return (this.requestFlags & MessageFrame.FLAG_REQUEST) != 0;
+	}
+
+	/**
+	 * Return true if this message responds to a request we sent
+	 *
+	 * @return
+	 */
+	public boolean isResponse() {
+		return (this.requestFlags & MessageFrame.FLAG_RESPONSE) != 0;
+	}
+
+	/**
+	 * Send the response to this request back to its sender with the same action
+	 *
+	 * @param payload the values to write, see {@link OutgoingMessage#write(Object...)}
+	 */
+	public void reply(Object... payload) {
+		this.reply(getAction(), payload);
+	}
+
+	/**
+	 * Send the response to this request back to its sender
+	 *
+	 * @param action
+	 * @param payload the values to write, see {@link OutgoingMessage#write(Object...)}
+	 */
+	public void reply(BungeeMessageType action, Object... payload) {
+		Valid.checkBoolean(isRequest(), "Cannot reply to " + getAction() + " message, it is not a request");
+		Valid.checkNotNull(this.sender, "Cannot reply to " + getAction() + " request without its sender connection");
+
+		final OutgoingMessage response = new OutgoingMessage(getListener(), this.sender.getInfo().getName(), getSenderUid(), action, MessageFrame.FLAG_RESPONSE, this.requestId);
+
+		response.write(payload);
+		response.send(this.sender);
+	}
+
 	/**
 	 * Forwards this message to another server
 	 *
@@ -280,12 +551,20 @@ public final class IncomingMessage extends Message {
 	public void forward(ServerInfo info) {
 
 		if (info.getPlayers().isEmpty()) {
-			Debugger.debug("bungee", "NOT sending data on " + getChannel() + " channel from " + getAction() + " to " + info.getName() + " server because it is empty.");
+			getMetrics().recordEmptyServerDrop();
+
+			if (Debugger.isDebugged("bungee"))
+				Debugger.debug("bungee", "NOT sending data on " + getChannel() + " channel from " + getAction() + " to " + info.getName() + " server because it is empty.");
 
 			return;
 		}
 
-		info.sendData(getChannel(), data);
-		Debugger.debug("bungee", "Forwarding data on " + getChannel() + " channel from " + getAction() + " to " + info.getName() + " server.");
+		for (final byte[] frame : MessageFrame.split(data, getListener().getMaxFrameSize()))
+			info.sendData(getChannel(), frame);
+
+		getMetrics().recordOut(data.length);
+
+		if (Debugger.isDebugged("bungee"))
+			Debugger.debug("bungee", "Forwarding data on " + getChannel() + " channel from " + getAction() + " to " + info.getName() + " server.");
 	}
 }
\ No newline at end of file
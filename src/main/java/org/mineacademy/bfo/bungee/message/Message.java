@@ -7,7 +7,6 @@ import org.mineacademy.bfo.bungee.BungeeListener;
 import org.mineacademy.bfo.bungee.BungeeMessageType;
 
 import lombok.AccessLevel;
-import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
 /**
@@ -26,13 +25,11 @@ abstract class Message {
 	/**
 	 * The UUID of the sender who initiated the packet, can be null
 	 */
-	@Getter
 	private UUID senderUid;
 
 	/**
 	 * The server name
 	 */
-	@Getter
 	private String serverName;
 
 	/**
@@ -40,12 +37,22 @@ abstract class Message {
 	 */
 	private BungeeMessageType action;
 
+	/**
+	 * The compiled layout of the action
+	 */
+	private MessageSchema schema;
+
 	/**
 	 * The current position of writing the data based on the
 	 * {@link BungeeMessageType#getContent()}
 	 */
 	private int actionHead = 0;
 
+	/**
+	 * The metrics of the channel and action, looked up on first use
+	 */
+	private MessageMetrics metrics;
+
 	/**
 	 * Set the sender UUID
 	 *
@@ -60,6 +67,33 @@ abstract class Message {
 			}
 	}
 
+	/**
+	 * Set the sender UUID
+	 *
+	 * @param senderUid
+	 */
+	protected final void setSenderUid(UUID senderUid) {
+		this.senderUid = senderUid;
+	}
+
+	/**
+	 * Return the UUID of the sender who initiated the packet, can be null
+	 *
+	 * @return
+	 */
+	public UUID getSenderUid() {
+		return this.senderUid;
+	}
+
+	/**
+	 * Return the server name
+	 *
+	 * @return
+	 */
+	public String getServerName() {
+		return this.serverName;
+	}
+
 	/**
 	 * Set the server name for this message, reason it is here:
 	 * cannot read in the constructor in {@link OutgoingMessage}
@@ -80,12 +114,25 @@ abstract class Message {
 	 * @param action
 	 */
 	protected final void setAction(String actionName) {
-		final BungeeMessageType action = BungeeMessageType.getByName(this.listener, actionName);
+		final BungeeMessageType action = this.listener.getAction(actionName);
 
 		Valid.checkNotNull(action, "Unknown plugin action named: " + actionName + ". IF YOU UPDATED THE PLUGIN BY RELOADING, you need to stop your entire network, ensure all servers were updated and start it again.");
 		setAction(action);
 	}
 
+	/**
+	 * Set the action head for this message from its position in the action enum,
+	 * used by compact headers
+	 *
+	 * @param ordinal
+	 */
+	protected final void setAction(int ordinal) {
+		final BungeeMessageType action = this.listener.getAction(ordinal);
+
+		Valid.checkNotNull(action, "Unknown plugin action number: " + ordinal + ". IF YOU UPDATED THE PLUGIN BY RELOADING, you need to stop your entire network, ensure all servers were updated and start it again.");
+		setAction(action);
+	}
+
 	/**
 	 * Set the action head for this message, reason it is here:
 	 * static access in {@link OutgoingMessage}
@@ -96,6 +143,7 @@ abstract class Message {
 		Valid.checkBoolean(this.action == null, "Action already set");
 
 		this.action = action;
+		this.schema = MessageSchema.of(action);
 	}
 
 	/**
@@ -108,6 +156,15 @@ abstract class Message {
 		return (T) action;
 	}
 
+	/**
+	 * Return the compiled layout of the action
+	 *
+	 * @return
+	 */
+	final MessageSchema getSchema() {
+		return this.schema;
+	}
+
 	/**
 	 * Ensures we are reading in the correct order as the given {@link BungeeMessageType}
 	 * specifies in its {@link BungeeMessageType#getContent()} getter.
@@ -118,15 +175,35 @@ abstract class Message {
 	 * @param typeOf
 	 */
 	protected final void moveHead(Class<?> typeOf) {
-		Valid.checkNotNull(serverName, "Server name not set!");
 		Valid.checkNotNull(action, "Action not set!");
 
-		final Class<?>[] content = action.getContent();
-		Valid.checkBoolean(actionHead < content.length, "Head out of bounds! Max data size for " + action.name() + " is " + content.length);
-
+		schema.checkField(actionHead, typeOf);
 		actionHead++;
 	}
 
+	/**
+	 * Return the declared type of the field at the current position
+	 *
+	 * @return
+	 */
+	final Class<?> getNextField() {
+		Valid.checkNotNull(action, "Action not set!");
+
+		return schema.getField(actionHead);
+	}
+
+	/**
+	 * Return the metrics of the channel and action of this message
+	 *
+	 * @return
+	 */
+	public final MessageMetrics getMetrics() {
+		if (this.metrics == null)
+			this.metrics = MessageMetrics.of(getChannel(), this.action);
+
+		return this.metrics;
+	}
+
 	/**
 	 * Return the bungee channel this message is coming from
 	 *
@@ -135,4 +212,13 @@ abstract class Message {
 	public final String getChannel() {
 		return this.listener.getChannel();
 	}
+
+	/**
+	 * Return the listener associated with this message
+	 *
+	 * @return
+	 */
+	protected final BungeeListener getListener() {
+		return this.listener;
+	}
 }
@@ -0,0 +1,261 @@
+package org.mineacademy.bfo.bungee.message;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mineacademy.bfo.Common;
+import org.mineacademy.bfo.bungee.BungeeListener;
+import org.mineacademy.bfo.debug.Debugger;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+
+/**
+ * Collects outgoing messages for one server and channel and sends them
+ * together as a single batch frame, see {@link MessageFrame}.
+ * <p>
+ * Messages are flushed when the window from {@link BungeeListener#getBatchWindowTicks()}
+ * passes since the first pending message, when pending messages exceed
+ * {@link BungeeListener#getBatchMaxBytes()} or when you call {@link #flush()}.
+ * <p>
+ * If the server has no players when flushing, the messages are counted as
+ * dropped and those sent using {@link OutgoingMessage#sendOrStore(ServerInfo)}
+ * are stored in the {@link ServerMessageQueue} instead.
+ */
+public final class MessageBatcher {
+
+	/**
+	 * Batchers by server name and then by channel
+	 */
+	private static final Map<String, Map<String, MessageBatcher>> batchers = new ConcurrentHashMap<>();
+
+	/**
+	 * The name of the server we send to, looked up when flushing
+	 * so we follow changes to the server list
+	 */
+	@Getter
+	private final String serverName;
+
+	/**
+	 * The channel we send on
+	 */
+	@Getter
+	private final String channel;
+
+	/**
+	 * How many ticks to collect messages before flushing
+	 */
+	private final int windowTicks;
+
+	/**
+	 * How many bytes to collect before flushing immediately, at most the maximum frame size
+	 */
+	private final int maxBytes;
+
+	/**
+	 * The frames waiting to be sent
+	 */
+	private List<PendingFrame> pendingFrames = new ArrayList<>();
+
+	/**
+	 * The size of the batch frame packing all pending frames
+	 */
+	private int pendingBytes = 0;
+
+	/**
+	 * The scheduled flush, or null if nothing is pending
+	 */
+	private ScheduledTask flushTask;
+
+	/*
+	 * Create a new batcher for the given server and listener
+	 */
+	private MessageBatcher(String serverName, BungeeListener listener) {
+		this.serverName = serverName;
+		this.channel = listener.getChannel();
+		this.windowTicks = Math.max(0, listener.getBatchWindowTicks());
+		this.maxBytes = listener.getMaxFrameSize() < 0 ? listener.getBatchMaxBytes() : Math.min(listener.getBatchMaxBytes(), listener.getMaxFrameSize());
+	}
+
+	/**
+	 * Queue the frames of the given message, flushing if pending frames exceed the size limit
+	 *
+	 * @param frames
+	 * @param metrics the metrics of the message
+	 * @param store true to store the message if the server is empty when flushing
+	 * @param key the deduplication key when storing, or null
+	 */
+	public synchronized void add(@NonNull List<byte[]> frames, @NonNull MessageMetrics metrics, boolean store, Object key) {
+		final PendingMessage message = new PendingMessage(frames, metrics, store, key);
+
+		for (final byte[] frame : frames) {
+			final int size = frame.length + MessageFrame.BATCH_FRAME_OVERHEAD;
+
+			if (this.pendingBytes > 0 && this.pendingBytes + size > this.maxBytes)
+				this.flush();
+
+			if (this.pendingBytes == 0)
+				this.pendingBytes = MessageFrame.BATCH_HEADER_SIZE;
+
+			this.pendingFrames.add(new PendingFrame(frame, message));
+			this.pendingBytes += size;
+
+			if (this.pendingBytes >= this.maxBytes)
+				this.flush();
+
+			else if (this.flushTask == null)
+				this.flushTask = Common.runLaterAsync(this.windowTicks, this::flush);
+		}
+	}
+
+	/**
+	 * Send all pending frames now
+	 */
+	public synchronized void flush() {
+		if (this.flushTask != null) {
+			this.flushTask.cancel();
+
+			this.flushTask = null;
+		}
+
+		if (this.pendingFrames.isEmpty())
+			return;
+
+		final List<PendingFrame> pending = this.pendingFrames;
+
+		this.pendingFrames = new ArrayList<>();
+		this.pendingBytes = 0;
+
+		final ServerInfo server = ProxyServer.getInstance().getServerInfo(this.serverName);
+
+		if (server == null || server.getPlayers().isEmpty()) {
+			this.dropOrStore(server, pending);
+
+			return;
+		}
+
+		final List<byte[]> frames = new ArrayList<>(pending.size());
+
+		for (final PendingFrame frame : pending)
+			frames.add(frame.data);
+
+		// A single frame is sent as is, it fits the maximum frame size already
+		server.sendData(this.channel, frames.size() == 1 ? frames.get(0) : MessageFrame.packBatch(frames));
+
+		for (final PendingFrame frame : pending) {
+			frame.message.metrics.recordOut(frame.message.counted ? 0 : 1, frame.data.length);
+
+			frame.message.counted = true;
+		}
+
+		if (Debugger.isDebugged("bungee"))
+			Debugger.debug("bungee", "Sending batch of " + frames.size() + " messages on " + this.channel + " channel to " + this.serverName + " server.");
+	}
+
+	/*
+	 * Count the messages of the given frames as dropped because the server is empty
+	 * or was removed, storing those which should be sent once a player connects
+	 */
+	private void dropOrStore(ServerInfo server, List<PendingFrame> pending) {
+		final Set<PendingMessage> messages = new LinkedHashSet<>();
+		int stored = 0;
+
+		for (final PendingFrame frame : pending)
+			if (!frame.message.counted)
+				messages.add(frame.message);
+
+		for (final PendingMessage message : messages) {
+			message.counted = true;
+
+			if (message.store && server != null) {
+				ServerMessageQueue.of(server).add(this.channel, message.frames, message.key, message.metrics);
+
+				stored++;
+
+			} else
+				message.metrics.recordEmptyServerDrop();
+		}
+
+		Debugger.debug("bungee", "NOT sending batch of " + messages.size() + " messages on " + this.channel + " channel to " + this.serverName + " server because it " + (server == null ? "was removed" : "is empty") + ", stored " + stored + " of them.");
+	}
+
+	/**
+	 * Return the batcher for the given server and listener channel
+	 *
+	 * @param server
+	 * @param listener
+	 * @return
+	 */
+	public static MessageBatcher of(@NonNull ServerInfo server, @NonNull BungeeListener listener) {
+		return batchers
+				.computeIfAbsent(server.getName(), name -> new ConcurrentHashMap<>())
+				.computeIfAbsent(listener.getChannel(), channel -> new MessageBatcher(server.getName(), listener));
+	}
+
+	/**
+	 * Send all pending frames for all servers now
+	 */
+	public static void flushAll() {
+		for (final Map<String, MessageBatcher> channels : batchers.values())
+			for (final MessageBatcher batcher : channels.values())
+				batcher.flush();
+	}
+
+	/**
+	 * Represents a message waiting in a batch
+	 */
+	@RequiredArgsConstructor
+	private static final class PendingMessage {
+
+		/**
+		 * All frames of the message
+		 */
+		private final List<byte[]> frames;
+
+		/**
+		 * The metrics of the message
+		 */
+		private final MessageMetrics metrics;
+
+		/**
+		 * Should we store the message if the server is empty?
+		 */
+		private final boolean store;
+
+		/**
+		 * The deduplication key when storing, or null
+		 */
+		private final Object key;
+
+		/**
+		 * Was the message counted as sent, dropped or stored already? Its chunks
+		 * may be spread over more batches but we count each message once
+		 */
+		private boolean counted;
+	}
+
+	/**
+	 * Represents a frame waiting in a batch
+	 */
+	@RequiredArgsConstructor
+	private static final class PendingFrame {
+
+		/**
+		 * The frame data
+		 */
+		private final byte[] data;
+
+		/**
+		 * The message this frame is a part of
+		 */
+		private final PendingMessage message;
+	}
+}
@@ -0,0 +1,318 @@
+package org.mineacademy.bfo.bungee.message;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.mineacademy.bfo.Common;
+import org.mineacademy.bfo.bungee.BungeeListener;
+import org.mineacademy.bfo.collection.expiringmap.NamedThreadFactory;
+import org.mineacademy.bfo.debug.Debugger;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Handles incoming messages of a listener on its own threads instead of the network
+ * thread that received them, see {@link BungeeListener#getDispatchThreads()}.
+ * <p>
+ * Messages with the same key, such as the sender server, always go to the same thread
+ * so they are handled in the order they arrived, messages with different keys are
+ * handled in parallel. Each thread queues at most {@link BungeeListener#getDispatchQueueCapacity()}
+ * messages, what happens to further messages depends on the {@link Backpressure}.
+ */
+public final class MessageDispatcher {
+
+	/**
+	 * All dispatchers which were not shut down yet
+	 */
+	private static final Set<MessageDispatcher> dispatchers = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The channel we dispatch messages for
+	 */
+	@Getter
+	private final String channel;
+
+	/**
+	 * What to do when a queue is full
+	 */
+	@Getter
+	private final Backpressure backpressure;
+
+	/**
+	 * How to pick the thread for a message
+	 */
+	private final DispatchKey key;
+
+	/**
+	 * The handler called for each message on the dispatch thread
+	 */
+	private final Consumer<IncomingMessage> handler;
+
+	/**
+	 * Single threaded executors, a message always goes to the same one for the same key
+	 */
+	private final ThreadPoolExecutor[] lanes;
+
+	/**
+	 * How many messages were dropped to make room for newer ones
+	 */
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * How many messages were rejected because a queue was full
+	 */
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Was this dispatcher shut down?
+	 */
+	@Getter
+	private volatile boolean shutdown;
+
+	/**
+	 * Create a new dispatcher for the given listener calling the given handler for each message
+	 *
+	 * @param listener
+	 * @param handler
+	 */
+	public MessageDispatcher(@NonNull BungeeListener listener, @NonNull Consumer<IncomingMessage> handler) {
+		this.channel = listener.getChannel();
+		this.backpressure = listener.getDispatchBackpressure();
+		this.key = listener.getDispatchKey();
+		this.handler = handler;
+		this.lanes = new ThreadPoolExecutor[Math.max(1, listener.getDispatchThreads())];
+
+		final NamedThreadFactory threadFactory = new NamedThreadFactory(this.channel + " Dispatcher %d");
+		final int capacity = Math.max(1, listener.getDispatchQueueCapacity());
+
+		for (int i = 0; i < this.lanes.length; i++)
+			this.lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity), threadFactory, this.createRejectionHandler());
+
+		dispatchers.add(this);
+	}
+
+	/**
+	 * Queue the given message to be handled on the thread for its key
+	 *
+	 * @param message
+	 */
+	public void dispatch(@NonNull IncomingMessage message) {
+		final Object key = this.key == DispatchKey.PLAYER ? message.getSenderUid() : message.getSender() != null ? message.getSender().getInfo().getName() : null;
+		final int lane = key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % this.lanes.length;
+
+		this.lanes[lane].execute(new DispatchTask(message));
+	}
+
+	/*
+	 * Apply the backpressure when a queue is full, messages arriving after
+	 * shutdown are always rejected
+	 */
+	private RejectedExecutionHandler createRejectionHandler() {
+		return (task, executor) -> {
+			if (executor.isShutdown()) {
+				this.reject(task);
+
+				return;
+			}
+
+			if (this.backpressure == Backpressure.BLOCK || this.backpressure == Backpressure.DROP_OLDEST)
+				this.enqueue(executor, task, this.backpressure == Backpressure.DROP_OLDEST);
+
+			else {
+				this.reject(task);
+
+				Debugger.debug("bungee", "Rejecting message on " + this.channel + " channel, its dispatch queue is full.");
+			}
+		};
+	}
+
+	/*
+	 * Wait until there is room for the task in the queue, dropping the oldest queued task first
+	 * if requested, rejecting it if the executor shuts down meanwhile
+	 */
+	private void enqueue(ThreadPoolExecutor executor, Runnable task, boolean dropOldest) {
+		final BlockingQueue<Runnable> queue = executor.getQueue();
+
+		try {
+			while (!executor.isShutdown()) {
+				if (dropOldest) {
+					final Runnable oldest = queue.poll();
+
+					if (oldest != null) {
+						this.droppedCount.incrementAndGet();
+
+						if (oldest instanceof DispatchTask)
+							((DispatchTask) oldest).message.getMetrics().recordDispatchRejection();
+					}
+				}
+
+				if (queue.offer(task, 100, TimeUnit.MILLISECONDS)) {
+
+					// The lane may have finished its queue and stopped right before we queued
+					if (executor.isShutdown() && queue.remove(task))
+						this.reject(task);
+
+					return;
+				}
+			}
+
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		this.reject(task);
+	}
+
+	/*
+	 * Count the given task as rejected
+	 */
+	private void reject(Runnable task) {
+		this.rejectedCount.incrementAndGet();
+
+		if (task instanceof DispatchTask)
+			((DispatchTask) task).message.getMetrics().recordDispatchRejection();
+	}
+
+	/**
+	 * Return how many messages wait to be handled
+	 *
+	 * @return
+	 */
+	public int getQueuedCount() {
+		int count = 0;
+
+		for (final ThreadPoolExecutor lane : this.lanes)
+			count += lane.getQueue().size();
+
+		return count;
+	}
+
+	/**
+	 * Return how many messages were dropped to make room for newer ones
+	 *
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return this.droppedCount.get();
+	}
+
+	/**
+	 * Return how many messages were rejected because a queue was full
+	 *
+	 * @return
+	 */
+	public long getRejectedCount() {
+		return this.rejectedCount.get();
+	}
+
+	/**
+	 * Stop accepting messages and wait up to 5 seconds in total for queued ones to be handled
+	 */
+	public void shutdown() {
+		this.shutdown = true;
+		dispatchers.remove(this);
+
+		for (final ThreadPoolExecutor lane : this.lanes)
+			lane.shutdown();
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		int unhandled = 0;
+
+		for (final ThreadPoolExecutor lane : this.lanes) {
+			boolean terminated = false;
+
+			try {
+				terminated = !Thread.currentThread().isInterrupted() && lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+			} catch (final InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (!terminated)
+				for (final Runnable task : lane.shutdownNow()) {
+					this.reject(task);
+
+					unhandled++;
+				}
+		}
+
+		if (unhandled > 0)
+			Common.log("Dropping " + unhandled + " messages on " + this.channel + " channel which were not handled in time.");
+	}
+
+	/**
+	 * Shut down all dispatchers, called automatically when the plugin disables
+	 */
+	public static void shutdownAll() {
+		for (final MessageDispatcher dispatcher : dispatchers)
+			dispatcher.shutdown();
+	}
+
+	/*
+	 * Handles one message, kept as a class so rejected tasks can be counted for their action
+	 */
+	@RequiredArgsConstructor
+	private final class DispatchTask implements Runnable {
+
+		/**
+		 * The message to handle
+		 */
+		private final IncomingMessage message;
+
+		@Override
+		public void run() {
+			try {
+				MessageDispatcher.this.handler.accept(this.message);
+
+			} catch (final Throwable t) {
+				Common.error(t, "Error handling " + this.message.getAction() + " message on " + MessageDispatcher.this.channel + " channel from " + this.message.getServerName() + " server");
+			}
+		}
+	}
+
+	/**
+	 * What to do with a message when the dispatch queue is full
+	 */
+	public enum Backpressure {
+
+		/**
+		 * Wait on the network thread until there is room
+		 */
+		BLOCK,
+
+		/**
+		 * Drop the oldest queued message
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * Drop the new message
+		 */
+		REJECT
+	}
+
+	/**
+	 * What messages must be handled in the order they arrived
+	 */
+	public enum DispatchKey {
+
+		/**
+		 * Messages from the same server
+		 */
+		SERVER,
+
+		/**
+		 * Messages with the same sender UUID
+		 */
+		PLAYER
+	}
+}
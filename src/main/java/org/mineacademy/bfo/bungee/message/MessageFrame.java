@@ -0,0 +1,326 @@
+package org.mineacademy.bfo.bungee.message;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.mineacademy.bfo.Valid;
+import org.mineacademy.bfo.exception.FoException;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+/**
+ * Describes the binary frames we send over plugin message channels.
+ * <p>
+ * Legacy (v1) frames start with the sender UUID, server name and action
+ * name written as strings. Since a string starts with its length and the UUID
+ * is only 36 characters long, the first byte of a v1 frame is always 0.
+ * <p>
+ * Compact (v2) frames start with {@link #MAGIC_V2} followed by:
+ * <pre>
+ * byte    flags
+ * varint  action ordinal
+ * long    sender UUID most significant bits
+ * long    sender UUID least significant bits
+ * string  server name
+ * </pre>
+ * Strings in compact frames are UTF-8 prefixed by their varint length so they
+ * are not limited to 65 535 bytes. When the {@link #FLAG_COMPRESSED} flag is set,
+ * the rest of the frame after the header is the varint length of the original
+ * data followed by the data compressed using Deflate.
+ * When the {@link #FLAG_REQUEST} or {@link #FLAG_RESPONSE} flag is set, the header
+ * ends with the varint request id matching a response to its request.
+ * The server name is always sent in full since the proxy and backends share no
+ * table of server ids, and such a table would change as servers are added or removed.
+ * <p>
+ * Batch frames start with {@link #MAGIC_BATCH} followed by the varint amount
+ * of frames and then each frame prefixed by its varint length.
+ * <p>
+ * Frames too large to be sent at once are split into chunk frames, each starting
+ * with {@link #MAGIC_CHUNK} followed by the varint message id, chunk index and chunk
+ * count and then the part of the original frame.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class MessageFrame {
+
+	/**
+	 * The first byte of a compact (v2) frame
+	 */
+	public static final byte MAGIC_V2 = (byte) 0xB2;
+
+	/**
+	 * The flag indicating the data after a compact header are compressed
+	 */
+	public static final int FLAG_COMPRESSED = 0x01;
+
+	/**
+	 * The flag indicating the frame is a request awaiting a response
+	 */
+	public static final int FLAG_REQUEST = 0x02;
+
+	/**
+	 * The flag indicating the frame is a response to a request
+	 */
+	public static final int FLAG_RESPONSE = 0x04;
+
+	/**
+	 * The first byte of a frame packing multiple frames together
+	 */
+	public static final byte MAGIC_BATCH = (byte) 0xB4;
+
+	/**
+	 * The first byte of a frame carrying a part of a larger frame
+	 */
+	public static final byte MAGIC_CHUNK = (byte) 0xB7;
+
+	/**
+	 * The maximum size of the batch header
+	 */
+	static final int BATCH_HEADER_SIZE = 1 + 5;
+
+	/**
+	 * The maximum size each frame in a batch adds besides its data
+	 */
+	static final int BATCH_FRAME_OVERHEAD = 5;
+
+	/**
+	 * The maximum size of the chunk header
+	 */
+	static final int CHUNK_HEADER_SIZE = 1 + 5 + 5 + 5;
+
+	/**
+	 * The id of the next message split into chunks
+	 */
+	private static final AtomicInteger nextMessageId = new AtomicInteger();
+
+	/**
+	 * Reused compressors, creating them allocates native memory
+	 */
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+	/**
+	 * Reused decompressors, creating them allocates native memory
+	 */
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * Return true if the given data start with a compact frame header
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static boolean isCompact(byte[] data) {
+		return data.length > 0 && data[0] == MAGIC_V2;
+	}
+
+	/**
+	 * Return true if the given data is a batch of multiple frames
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static boolean isBatch(byte[] data) {
+		return data.length > 0 && data[0] == MAGIC_BATCH;
+	}
+
+	/**
+	 * Pack the given frames into a single batch frame
+	 *
+	 * @param frames
+	 * @return
+	 */
+	public static byte[] packBatch(List<byte[]> frames) {
+		int size = BATCH_HEADER_SIZE;
+
+		for (final byte[] frame : frames)
+			size += BATCH_FRAME_OVERHEAD + frame.length;
+
+		final MessageWriter writer = new MessageWriter(size);
+
+		writer.writeByte(MAGIC_BATCH);
+		writer.writeVarInt(frames.size());
+
+		for (final byte[] frame : frames) {
+			writer.writeVarInt(frame.length);
+			writer.writeBytes(frame);
+		}
+
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Unpack the frames from the given batch frame
+	 * <p>
+	 * The amount and lengths come from the sender, so we reject those
+	 * exceeding the rest of the data before allocating
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static List<byte[]> unpackBatch(byte[] data) {
+		Valid.checkBoolean(isBatch(data), "Not a batch frame");
+
+		final ByteBuffer buffer = ByteBuffer.wrap(data, 1, data.length - 1);
+		final int count = readVarInt(buffer);
+
+		// Each frame takes at least the byte of its length
+		if (count < 0 || count > buffer.remaining())
+			throw new FoException("Batch frame is corrupted, got " + count + " frames in " + buffer.remaining() + " bytes");
+
+		final List<byte[]> frames = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			final int length = readVarInt(buffer);
+
+			if (length < 0 || length > buffer.remaining())
+				throw new FoException("Batch frame is corrupted, frame " + (i + 1) + "/" + count + " has " + length + " bytes but only " + buffer.remaining() + " remain");
+
+			final byte[] frame = new byte[length];
+
+			buffer.get(frame);
+			frames.add(frame);
+		}
+
+		return frames;
+	}
+
+	/**
+	 * Return true if the given data is a part of a larger frame
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static boolean isChunk(byte[] data) {
+		return data.length > 0 && data[0] == MAGIC_CHUNK;
+	}
+
+	/**
+	 * Split the given frame into chunk frames no larger than the given size,
+	 * returning the frame itself if it fits
+	 *
+	 * @param data
+	 * @param maxFrameSize the maximum frame size, or -1 to never split
+	 * @return
+	 */
+	public static List<byte[]> split(byte[] data, int maxFrameSize) {
+		if (maxFrameSize < 0 || data.length <= maxFrameSize)
+			return Collections.singletonList(data);
+
+		Valid.checkBoolean(maxFrameSize > CHUNK_HEADER_SIZE, "Max frame size must be above " + CHUNK_HEADER_SIZE + " bytes, got " + maxFrameSize);
+
+		final int chunkSize = maxFrameSize - CHUNK_HEADER_SIZE;
+		final int count = (data.length + chunkSize - 1) / chunkSize;
+		final int messageId = nextMessageId.getAndIncrement() & Integer.MAX_VALUE;
+		final List<byte[]> chunks = new ArrayList<>(count);
+
+		for (int index = 0; index < count; index++) {
+			final int offset = index * chunkSize;
+			final int length = Math.min(chunkSize, data.length - offset);
+			final MessageWriter writer = new MessageWriter(CHUNK_HEADER_SIZE + length);
+
+			writer.writeByte(MAGIC_CHUNK);
+			writer.writeVarInt(messageId);
+			writer.writeVarInt(index);
+			writer.writeVarInt(count);
+			writer.writeBytes(data, offset, length);
+
+			chunks.add(writer.toByteArray());
+		}
+
+		return Collections.unmodifiableList(chunks);
+	}
+
+	/**
+	 * Compress the given range of data, returning null if compressing
+	 * would not make the data smaller
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static byte[] compress(byte[] data, int offset, int length) {
+		final Deflater deflater = deflaters.get();
+		final byte[] buffer = new byte[length];
+
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+
+			final int compressedLength = deflater.deflate(buffer);
+
+			return deflater.finished() ? Arrays.copyOf(buffer, compressedLength) : null;
+
+		} finally {
+			deflater.reset();
+		}
+	}
+
+	/**
+	 * Decompress the given range of data
+	 * <p>
+	 * The original length comes from the sender, so we reject lengths Deflate
+	 * could not produce from the given data or larger than
+	 * {@link MessageReassembler#getMaxBufferedBytes()} before allocating
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param originalLength
+	 * @return
+	 */
+	public static byte[] decompress(byte[] data, int offset, int length, int originalLength) {
+
+		// Deflate cannot shrink data more than about a thousand times
+		if (originalLength < 0 || originalLength > length * 1032L || originalLength > MessageReassembler.getMaxBufferedBytes())
+			throw new FoException("Compressed message data are corrupted, got original length " + originalLength + " for " + length + " compressed bytes");
+
+		final Inflater inflater = inflaters.get();
+		final byte[] original = new byte[originalLength];
+
+		try {
+			inflater.setInput(data, offset, length);
+
+			if (inflater.inflate(original) != originalLength || !inflater.finished())
+				throw new FoException("Compressed message data are corrupted, expected " + originalLength + " bytes");
+
+			return original;
+
+		} catch (final DataFormatException ex) {
+			throw new FoException(ex, "Failed to decompress message data");
+
+		} finally {
+			inflater.reset();
+		}
+	}
+
+	/**
+	 * Read an unsigned integer written using 7 bits per byte
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	public static int readVarInt(ByteBuffer buffer) {
+		int value = 0;
+
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!buffer.hasRemaining())
+				throw new FoException("Truncated variable-length number");
+
+			final byte next = buffer.get();
+			value |= (next & 0x7F) << shift;
+
+			if ((next & 0x80) == 0)
+				return value;
+		}
+
+		throw new FoException("Malformed variable-length number");
+	}
+}
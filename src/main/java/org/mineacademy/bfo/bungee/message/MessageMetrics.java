@@ -0,0 +1,597 @@
+package org.mineacademy.bfo.bungee.message;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mineacademy.bfo.bungee.BungeeMessageType;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+
+/**
+ * Counts messages and bytes sent and received for each channel and action
+ * and measures how long it takes to encode, decode and handle them.
+ * <p>
+ * Use {@link #snapshot()} to read the values, or the metrics sub-command.
+ * Times are collected in histograms with buckets doubling in size so
+ * recording stays cheap, percentiles are therefore approximate.
+ */
+public final class MessageMetrics {
+
+	/**
+	 * Metrics by channel and then by action
+	 */
+	private static final Map<String, Map<BungeeMessageType, MessageMetrics>> metrics = new ConcurrentHashMap<>();
+
+	/**
+	 * Should we record anything?
+	 */
+	@Getter
+	@Setter
+	private static volatile boolean enabled = true;
+
+	/**
+	 * The channel
+	 */
+	private final String channel;
+
+	/**
+	 * The action
+	 */
+	private final BungeeMessageType action;
+
+	/**
+	 * Received messages
+	 */
+	private final LongAdder messagesIn = new LongAdder();
+
+	/**
+	 * Received bytes
+	 */
+	private final LongAdder bytesIn = new LongAdder();
+
+	/**
+	 * Sent messages, counted once per server
+	 */
+	private final LongAdder messagesOut = new LongAdder();
+
+	/**
+	 * Sent bytes
+	 */
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Messages not sent because the server had no players
+	 */
+	private final LongAdder emptyServerDrops = new LongAdder();
+
+	/**
+	 * Received messages not handled because the dispatch queue was full or shut down
+	 */
+	private final LongAdder dispatchRejections = new LongAdder();
+
+	/**
+	 * Messages stored for an empty server, see {@link ServerMessageQueue}
+	 */
+	private final LongAdder storedMessages = new LongAdder();
+
+	/**
+	 * Stored messages replaced by a newer one with the same key
+	 */
+	private final LongAdder storedReplacements = new LongAdder();
+
+	/**
+	 * Stored messages which expired
+	 */
+	private final LongAdder storedExpiries = new LongAdder();
+
+	/**
+	 * Stored messages dropped to make room because the queue was full
+	 */
+	private final LongAdder storedOverflows = new LongAdder();
+
+	/**
+	 * Stored messages sent once a player connected
+	 */
+	private final LongAdder storedDeliveries = new LongAdder();
+
+	/**
+	 * Time to compile outgoing messages
+	 */
+	private final Histogram encodeTimes = new Histogram();
+
+	/**
+	 * Time to read the header of incoming messages
+	 */
+	private final Histogram decodeTimes = new Histogram();
+
+	/**
+	 * Time spent in the listener handling incoming messages
+	 */
+	private final Histogram handlerTimes = new Histogram();
+
+	/*
+	 * Create new metrics for the given channel and action
+	 */
+	private MessageMetrics(String channel, BungeeMessageType action) {
+		this.channel = channel;
+		this.action = action;
+	}
+
+	/**
+	 * Record a received message of the given size
+	 *
+	 * @param bytes
+	 */
+	public void recordIn(int bytes) {
+		if (enabled) {
+			this.messagesIn.increment();
+			this.bytesIn.add(bytes);
+		}
+	}
+
+	/**
+	 * Record a message of the given size sent to one server
+	 *
+	 * @param bytes
+	 */
+	public void recordOut(int bytes) {
+		this.recordOut(1, bytes);
+	}
+
+	/**
+	 * Record the given amount of messages of the given total size sent to one server,
+	 * the amount is 0 when sending the remaining chunks of a message counted already
+	 *
+	 * @param messages
+	 * @param bytes
+	 */
+	public void recordOut(int messages, int bytes) {
+		if (enabled) {
+			this.messagesOut.add(messages);
+			this.bytesOut.add(bytes);
+		}
+	}
+
+	/**
+	 * Record a message not sent because the server had no players
+	 */
+	public void recordEmptyServerDrop() {
+		if (enabled)
+			this.emptyServerDrops.increment();
+	}
+
+	/**
+	 * Record a received message not handled because the dispatch queue was full or shut down
+	 */
+	public void recordDispatchRejection() {
+		if (enabled)
+			this.dispatchRejections.increment();
+	}
+
+	/**
+	 * Record a message stored for an empty server
+	 */
+	public void recordStored() {
+		if (enabled)
+			this.storedMessages.increment();
+	}
+
+	/**
+	 * Record a stored message replaced by a newer one with the same key
+	 */
+	public void recordStoredReplacement() {
+		if (enabled)
+			this.storedReplacements.increment();
+	}
+
+	/**
+	 * Record a stored message which expired
+	 */
+	public void recordStoredExpiry() {
+		if (enabled)
+			this.storedExpiries.increment();
+	}
+
+	/**
+	 * Record a stored message dropped to make room because the queue was full
+	 */
+	public void recordStoredOverflow() {
+		if (enabled)
+			this.storedOverflows.increment();
+	}
+
+	/**
+	 * Record a stored message sent once a player connected
+	 */
+	public void recordStoredDelivery() {
+		if (enabled)
+			this.storedDeliveries.increment();
+	}
+
+	/**
+	 * Record the time it took to compile an outgoing message
+	 *
+	 * @param nanos
+	 */
+	public void recordEncode(long nanos) {
+		if (enabled)
+			this.encodeTimes.record(nanos);
+	}
+
+	/**
+	 * Record the time it took to read the header of an incoming message
+	 *
+	 * @param nanos
+	 */
+	public void recordDecode(long nanos) {
+		if (enabled)
+			this.decodeTimes.record(nanos);
+	}
+
+	/**
+	 * Record the time the listener took to handle an incoming message
+	 *
+	 * @param nanos
+	 */
+	public void recordHandler(long nanos) {
+		if (enabled)
+			this.handlerTimes.record(nanos);
+	}
+
+	/*
+	 * Return the current values
+	 */
+	private Snapshot toSnapshot() {
+		return new Snapshot(this.channel, this.action.name(),
+				this.messagesIn.sum(), this.bytesIn.sum(), this.messagesOut.sum(), this.bytesOut.sum(), this.emptyServerDrops.sum(), this.dispatchRejections.sum(),
+				this.storedMessages.sum(), this.storedReplacements.sum(), this.storedExpiries.sum(), this.storedOverflows.sum(), this.storedDeliveries.sum(),
+				this.encodeTimes.toTimings(), this.decodeTimes.toTimings(), this.handlerTimes.toTimings());
+	}
+
+	/**
+	 * Return the metrics for the given channel and action
+	 *
+	 * @param channel
+	 * @param action
+	 * @return
+	 */
+	public static MessageMetrics of(@NonNull String channel, @NonNull BungeeMessageType action) {
+		Map<BungeeMessageType, MessageMetrics> actions = metrics.get(channel);
+
+		if (actions == null)
+			actions = metrics.computeIfAbsent(channel, key -> new ConcurrentHashMap<>());
+
+		MessageMetrics actionMetrics = actions.get(action);
+
+		if (actionMetrics == null)
+			actionMetrics = actions.computeIfAbsent(action, key -> new MessageMetrics(channel, action));
+
+		return actionMetrics;
+	}
+
+	/**
+	 * Return the current values for each action of each channel, sorted by channel and action
+	 *
+	 * @return
+	 */
+	public static List<Snapshot> snapshot() {
+		final List<Snapshot> snapshots = new ArrayList<>();
+
+		for (final Map<BungeeMessageType, MessageMetrics> actions : metrics.values())
+			for (final MessageMetrics actionMetrics : actions.values())
+				snapshots.add(actionMetrics.toSnapshot());
+
+		snapshots.sort(Comparator.comparing(Snapshot::getChannel).thenComparing(Snapshot::getAction));
+		return snapshots;
+	}
+
+	/**
+	 * Return the current values for all actions of the given channel together,
+	 * the action of the returned snapshot is null
+	 *
+	 * @param channel
+	 * @return
+	 */
+	public static Snapshot snapshot(@NonNull String channel) {
+		Snapshot total = new Snapshot(channel, null, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, Timings.EMPTY, Timings.EMPTY, Timings.EMPTY);
+		final Map<BungeeMessageType, MessageMetrics> actions = metrics.get(channel);
+
+		if (actions != null)
+			for (final MessageMetrics actionMetrics : actions.values())
+				total = total.merge(actionMetrics.toSnapshot());
+
+		return total;
+	}
+
+	/**
+	 * Forget all recorded values
+	 */
+	public static void reset() {
+		metrics.clear();
+	}
+
+	/**
+	 * Represents the values of metrics at the time they were taken
+	 */
+	@Getter
+	public static final class Snapshot {
+
+		/**
+		 * The channel
+		 */
+		private final String channel;
+
+		/**
+		 * The action name, or null if this holds all actions of the channel
+		 */
+		private final String action;
+
+		/**
+		 * Received messages
+		 */
+		private final long messagesIn;
+
+		/**
+		 * Received bytes
+		 */
+		private final long bytesIn;
+
+		/**
+		 * Sent messages, counted once per server
+		 */
+		private final long messagesOut;
+
+		/**
+		 * Sent bytes
+		 */
+		private final long bytesOut;
+
+		/**
+		 * Messages not sent because the server had no players
+		 */
+		private final long emptyServerDrops;
+
+		/**
+		 * Received messages not handled because the dispatch queue was full or shut down
+		 */
+		private final long dispatchRejections;
+
+		/**
+		 * Messages stored for an empty server
+		 */
+		private final long storedMessages;
+
+		/**
+		 * Stored messages replaced by a newer one with the same key
+		 */
+		private final long storedReplacements;
+
+		/**
+		 * Stored messages which expired
+		 */
+		private final long storedExpiries;
+
+		/**
+		 * Stored messages dropped to make room because the queue was full
+		 */
+		private final long storedOverflows;
+
+		/**
+		 * Stored messages sent once a player connected
+		 */
+		private final long storedDeliveries;
+
+		/**
+		 * Time to compile outgoing messages
+		 */
+		private final Timings encodeTimes;
+
+		/**
+		 * Time to read the header of incoming messages
+		 */
+		private final Timings decodeTimes;
+
+		/**
+		 * Time spent in the listener handling incoming messages
+		 */
+		private final Timings handlerTimes;
+
+		/*
+		 * Create a new snapshot
+		 */
+		private Snapshot(String channel, String action, long messagesIn, long bytesIn, long messagesOut, long bytesOut, long emptyServerDrops, long dispatchRejections,
+				long storedMessages, long storedReplacements, long storedExpiries, long storedOverflows, long storedDeliveries, Timings encodeTimes, Timings decodeTimes, Timings handlerTimes) {
+			this.channel = channel;
+			this.action = action;
+			this.messagesIn = messagesIn;
+			this.bytesIn = bytesIn;
+			this.messagesOut = messagesOut;
+			this.bytesOut = bytesOut;
+			this.emptyServerDrops = emptyServerDrops;
+			this.dispatchRejections = dispatchRejections;
+			this.storedMessages = storedMessages;
+			this.storedReplacements = storedReplacements;
+			this.storedExpiries = storedExpiries;
+			this.storedOverflows = storedOverflows;
+			this.storedDeliveries = storedDeliveries;
+			this.encodeTimes = encodeTimes;
+			this.decodeTimes = decodeTimes;
+			this.handlerTimes = handlerTimes;
+		}
+
+		/*
+		 * Return a new snapshot adding up the values of this and the other one
+		 */
+		private Snapshot merge(Snapshot other) {
+			return new Snapshot(this.channel, null,
+					this.messagesIn + other.messagesIn, this.bytesIn + other.bytesIn,
+					this.messagesOut + other.messagesOut, this.bytesOut + other.bytesOut,
+					this.emptyServerDrops + other.emptyServerDrops, this.dispatchRejections + other.dispatchRejections,
+					this.storedMessages + other.storedMessages, this.storedReplacements + other.storedReplacements,
+					this.storedExpiries + other.storedExpiries, this.storedOverflows + other.storedOverflows, this.storedDeliveries + other.storedDeliveries,
+					this.encodeTimes.merge(other.encodeTimes), this.decodeTimes.merge(other.decodeTimes), this.handlerTimes.merge(other.handlerTimes));
+		}
+	}
+
+	/**
+	 * Represents recorded times at the time they were taken
+	 */
+	public static final class Timings {
+
+		/**
+		 * Timings with nothing recorded
+		 */
+		private static final Timings EMPTY = new Timings(new long[Histogram.BUCKETS], 0, 0);
+
+		/**
+		 * How many times fell into each bucket
+		 */
+		private final long[] buckets;
+
+		/**
+		 * How many times were recorded
+		 */
+		@Getter
+		private final long count;
+
+		/**
+		 * The sum of all times
+		 */
+		@Getter
+		private final long totalNanos;
+
+		/**
+		 * The longest time
+		 */
+		@Getter
+		private final long maxNanos;
+
+		/*
+		 * Create new timings from the given buckets
+		 */
+		private Timings(long[] buckets, long totalNanos, long maxNanos) {
+			long count = 0;
+
+			for (final long bucket : buckets)
+				count += bucket;
+
+			this.buckets = buckets;
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+		}
+
+		/**
+		 * Return the average time
+		 *
+		 * @return
+		 */
+		public long getMeanNanos() {
+			return this.count == 0 ? 0 : this.totalNanos / this.count;
+		}
+
+		/**
+		 * Return the time under which the given fraction of times fell,
+		 * such as 0.99 for the 99th percentile, rounded up to the bucket
+		 *
+		 * @param fraction
+		 * @return
+		 */
+		public long getPercentileNanos(double fraction) {
+			if (this.count == 0)
+				return 0;
+
+			final long wanted = (long) Math.ceil(this.count * fraction);
+			long seen = 0;
+
+			for (int i = 0; i < this.buckets.length; i++) {
+				seen += this.buckets[i];
+
+				if (seen >= wanted)
+					return Math.min(this.maxNanos, Histogram.upperBound(i));
+			}
+
+			return this.maxNanos;
+		}
+
+		/*
+		 * Return new timings adding up this and the other ones
+		 */
+		private Timings merge(Timings other) {
+			final long[] buckets = new long[this.buckets.length];
+
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = this.buckets[i] + other.buckets[i];
+
+			return new Timings(buckets, this.totalNanos + other.totalNanos, Math.max(this.maxNanos, other.maxNanos));
+		}
+	}
+
+	/**
+	 * Records times into buckets where bucket i holds times below 2^(i+1) nanoseconds
+	 */
+	private static final class Histogram {
+
+		/**
+		 * The amount of buckets
+		 */
+		private static final int BUCKETS = 64;
+
+		/**
+		 * How many times fell into each bucket
+		 */
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		/**
+		 * The sum of all times
+		 */
+		private final LongAdder totalNanos = new LongAdder();
+
+		/**
+		 * The longest time
+		 */
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		/*
+		 * Record the given time
+		 */
+		private void record(long nanos) {
+			nanos = Math.max(0, nanos);
+
+			this.buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+			this.totalNanos.add(nanos);
+
+			long max;
+
+			while (nanos > (max = this.maxNanos.get()) && !this.maxNanos.compareAndSet(max, nanos))
+				;
+		}
+
+		/*
+		 * Return the recorded times
+		 */
+		private Timings toTimings() {
+			final long[] buckets = new long[BUCKETS];
+
+			for (int i = 0; i < BUCKETS; i++)
+				buckets[i] = this.buckets.get(i);
+
+			return new Timings(buckets, this.totalNanos.sum(), this.maxNanos.get());
+		}
+
+		/*
+		 * Return the largest time that falls into the given bucket
+		 */
+		private static long upperBound(int bucket) {
+			return bucket >= 62 ? Long.MAX_VALUE : (1L << bucket + 1) - 1;
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package org.mineacademy.bfo.bungee.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.mineacademy.bfo.exception.FoException;
+
+/**
+ * Reads primitives directly from a {@link ByteBuffer} view of the data in the
+ * same big-endian format as {@link java.io.DataInput}, without copying them first.
+ * See {@link MessageWriter} for the writing counterpart.
+ */
+final class MessageReader {
+
+	/**
+	 * The buffer we read from
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Create a new reader for the given range of the array
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	MessageReader(byte[] data, int offset, int length) {
+		this.buffer = ByteBuffer.wrap(data, offset, length);
+	}
+
+	/**
+	 * Read a boolean
+	 *
+	 * @return
+	 */
+	boolean readBoolean() {
+		return this.buffer.get() != 0;
+	}
+
+	/**
+	 * Read a byte
+	 *
+	 * @return
+	 */
+	byte readByte() {
+		return this.buffer.get();
+	}
+
+	/**
+	 * Read a short
+	 *
+	 * @return
+	 */
+	short readShort() {
+		return this.buffer.getShort();
+	}
+
+	/**
+	 * Read an integer
+	 *
+	 * @return
+	 */
+	int readInt() {
+		return this.buffer.getInt();
+	}
+
+	/**
+	 * Read a long
+	 *
+	 * @return
+	 */
+	long readLong() {
+		return this.buffer.getLong();
+	}
+
+	/**
+	 * Read a float
+	 *
+	 * @return
+	 */
+	float readFloat() {
+		return this.buffer.getFloat();
+	}
+
+	/**
+	 * Read a double
+	 *
+	 * @return
+	 */
+	double readDouble() {
+		return this.buffer.getDouble();
+	}
+
+	/**
+	 * Read an unsigned integer written using 7 bits per byte
+	 *
+	 * @return
+	 */
+	int readVarInt() {
+		return MessageFrame.readVarInt(this.buffer);
+	}
+
+	/**
+	 * Read all remaining bytes
+	 *
+	 * @return
+	 */
+	byte[] readRemaining() {
+		final byte[] bytes = new byte[this.buffer.remaining()];
+		this.buffer.get(bytes);
+
+		return bytes;
+	}
+
+	/**
+	 * Read a string written using {@link MessageWriter#writeUTF(String)}
+	 *
+	 * @return
+	 */
+	String readUTF() {
+		final String string = decodeUTF(this.buffer.array(), this.buffer.position());
+
+		this.skipUTF();
+		return string;
+	}
+
+	/**
+	 * Read a string written using {@link MessageWriter#writeString(String)}
+	 *
+	 * @return
+	 */
+	String readString() {
+		final int length = this.readVarInt();
+		final int offset = this.buffer.position();
+
+		this.skip(length);
+		return new String(this.buffer.array(), offset, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Skip a string written using {@link MessageWriter#writeUTF(String)} without decoding it
+	 */
+	void skipUTF() {
+		this.skip(this.buffer.getShort() & 0xFFFF);
+	}
+
+	/**
+	 * Skip a string written using {@link MessageWriter#writeString(String)} without decoding it
+	 */
+	void skipString() {
+		this.skip(this.readVarInt());
+	}
+
+	/**
+	 * Skip the given amount of bytes
+	 *
+	 * @param length
+	 */
+	void skip(int length) {
+		if (length > this.buffer.remaining())
+			throw new FoException("Cannot skip " + length + " bytes, only " + this.buffer.remaining() + " bytes remain");
+
+		this.buffer.position(this.buffer.position() + length);
+	}
+
+	/**
+	 * Return the position in the underlying array
+	 *
+	 * @return
+	 */
+	int position() {
+		return this.buffer.position();
+	}
+
+	/**
+	 * Return how many bytes remain
+	 *
+	 * @return
+	 */
+	int remaining() {
+		return this.buffer.remaining();
+	}
+
+	/**
+	 * Decode the string written using {@link MessageWriter#writeUTF(String)}
+	 * at the given position in the array
+	 *
+	 * @param data
+	 * @param offset
+	 * @return
+	 */
+	static String decodeUTF(byte[] data, int offset) {
+		if (offset + 2 > data.length)
+			throw new FoException("Malformed string, its length is cut off at position " + offset);
+
+		final int length = (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+		final int end = offset + 2 + length;
+
+		if (end > data.length)
+			throw new FoException("Malformed string of " + length + " bytes, only " + (data.length - offset - 2) + " bytes remain");
+
+		final char[] chars = new char[length];
+		int count = 0;
+
+		for (int i = offset + 2; i < end;) {
+			final int first = data[i] & 0xFF;
+
+			if (first < 0x80) {
+				chars[count++] = (char) first;
+				i++;
+
+			} else if ((first & 0xE0) == 0xC0 && i + 1 < end) {
+				chars[count++] = (char) ((first & 0x1F) << 6 | data[i + 1] & 0x3F);
+				i += 2;
+
+			} else if ((first & 0xF0) == 0xE0 && i + 2 < end) {
+				chars[count++] = (char) ((first & 0x0F) << 12 | (data[i + 1] & 0x3F) << 6 | data[i + 2] & 0x3F);
+				i += 3;
+
+			} else
+				throw new FoException("Malformed string, unexpected byte " + first + " at position " + (i - offset - 2));
+		}
+
+		return new String(chars, 0, count);
+	}
+
+	/**
+	 * Decode the string written using {@link MessageWriter#writeString(String)}
+	 * at the given position in the array
+	 *
+	 * @param data
+	 * @param offset
+	 * @return
+	 */
+	static String decodeString(byte[] data, int offset) {
+		final ByteBuffer buffer = ByteBuffer.wrap(data, offset, data.length - offset);
+		final int length = MessageFrame.readVarInt(buffer);
+
+		return new String(data, buffer.position(), length, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,203 @@
+package org.mineacademy.bfo.bungee.message;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.mineacademy.bfo.Common;
+import org.mineacademy.bfo.debug.Debugger;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+
+/**
+ * Joins chunk frames back into the frame they were split from,
+ * see {@link MessageFrame#split(byte[], int)}.
+ * <p>
+ * Incomplete messages are dropped after {@link #getTimeoutMillis()} or when all
+ * incomplete messages take more than {@link #getMaxBufferedBytes()}, oldest first.
+ */
+public final class MessageReassembler {
+
+	/**
+	 * How long to wait for the remaining chunks of a message
+	 */
+	@Getter
+	@Setter
+	private static volatile long timeoutMillis = TimeUnit.SECONDS.toMillis(10);
+
+	/**
+	 * How many bytes all incomplete messages of one channel can take
+	 */
+	@Getter
+	@Setter
+	private static volatile int maxBufferedBytes = 16 * 1024 * 1024;
+
+	/**
+	 * Incomplete messages by their sender server and message id, oldest first
+	 */
+	private final LinkedHashMap<String, PartialMessage> partialMessages = new LinkedHashMap<>();
+
+	/**
+	 * How many bytes all incomplete messages take
+	 */
+	private int bufferedBytes = 0;
+
+	/**
+	 * Add the given chunk frame received from the given server, returning
+	 * the original frame when this was the last missing chunk, or null
+	 *
+	 * @param serverName
+	 * @param chunk
+	 * @param maxFrameSize the size messages were split by, see {@link MessageFrame#split(byte[], int)},
+	 *                     or -1 to assume the size of this chunk
+	 * @return
+	 */
+	public synchronized byte[] add(@NonNull String serverName, @NonNull byte[] chunk, int maxFrameSize) {
+		final long now = System.currentTimeMillis();
+
+		this.removeExpired(now);
+
+		final ByteBuffer buffer = ByteBuffer.wrap(chunk, 1, chunk.length - 1);
+		final int messageId = MessageFrame.readVarInt(buffer);
+		final int index = MessageFrame.readVarInt(buffer);
+		final int count = MessageFrame.readVarInt(buffer);
+
+		if (count < 1 || index < 0 || index >= count) {
+			Common.log("Dropping malformed chunk " + index + "/" + count + " of message " + messageId + " from " + serverName + " server.");
+
+			return null;
+		}
+
+		// Reject messages that could never fit the memory limit before allocating their parts
+		final int chunkSize = Math.max(1, (maxFrameSize > MessageFrame.CHUNK_HEADER_SIZE ? maxFrameSize : chunk.length) - MessageFrame.CHUNK_HEADER_SIZE);
+		final int maxCount = maxBufferedBytes / chunkSize + 1;
+
+		if (count > maxCount) {
+			Common.log("Dropping chunk " + index + "/" + count + " of message " + messageId + " from " + serverName + " server, at most " + maxCount + " chunks fit into " + maxBufferedBytes + " bytes.");
+
+			return null;
+		}
+
+		final String key = serverName + "#" + messageId;
+		PartialMessage message = this.partialMessages.get(key);
+
+		if (message == null) {
+			message = new PartialMessage(count, now);
+
+			this.partialMessages.put(key, message);
+
+		} else if (message.parts.length != count) {
+			this.partialMessages.remove(key);
+			this.bufferedBytes -= message.size;
+
+			Common.log("Dropping incomplete message " + key + " because its chunks disagree on their count, got " + count + " after " + message.parts.length + ".");
+
+			return null;
+		}
+
+		if (message.parts[index] != null)
+			return null;
+
+		final byte[] part = new byte[buffer.remaining()];
+		buffer.get(part);
+
+		message.parts[index] = part;
+		message.received++;
+		message.size += part.length;
+		this.bufferedBytes += part.length;
+
+		if (message.received == count) {
+			this.partialMessages.remove(key);
+			this.bufferedBytes -= message.size;
+
+			return message.join();
+		}
+
+		this.removeOverLimit(key);
+		return null;
+	}
+
+	/*
+	 * Drop messages that did not complete in time
+	 */
+	private void removeExpired(long now) {
+		for (final Iterator<Map.Entry<String, PartialMessage>> it = this.partialMessages.entrySet().iterator(); it.hasNext();) {
+			final Map.Entry<String, PartialMessage> entry = it.next();
+
+			if (now - entry.getValue().createdAt > timeoutMillis) {
+				it.remove();
+
+				this.bufferedBytes -= entry.getValue().size;
+				Debugger.debug("bungee", "Dropping incomplete message " + entry.getKey() + " after it timed out.");
+			}
+		}
+	}
+
+	/*
+	 * Drop the oldest messages until we fit into the memory limit
+	 */
+	private void removeOverLimit(String currentKey) {
+		for (final Iterator<Map.Entry<String, PartialMessage>> it = this.partialMessages.entrySet().iterator(); it.hasNext() && this.bufferedBytes > maxBufferedBytes;) {
+			final Map.Entry<String, PartialMessage> entry = it.next();
+
+			it.remove();
+			this.bufferedBytes -= entry.getValue().size;
+
+			Common.log("Dropping incomplete message " + entry.getKey() + (entry.getKey().equals(currentKey) ? " because it is too large" : " to free memory") + ", " + maxBufferedBytes + " bytes are allowed.");
+		}
+	}
+
+	/**
+	 * Represents a message we received some chunks of
+	 */
+	private static final class PartialMessage {
+
+		/**
+		 * The received parts, null if missing
+		 */
+		private final byte[][] parts;
+
+		/**
+		 * When the first chunk arrived
+		 */
+		private final long createdAt;
+
+		/**
+		 * How many parts we have
+		 */
+		private int received = 0;
+
+		/**
+		 * The size of the parts we have
+		 */
+		private int size = 0;
+
+		/*
+		 * Create a new message expecting the given amount of parts
+		 */
+		private PartialMessage(int count, long createdAt) {
+			this.parts = new byte[count][];
+			this.createdAt = createdAt;
+		}
+
+		/*
+		 * Join all parts together
+		 */
+		private byte[] join() {
+			final byte[] data = new byte[this.size];
+			int offset = 0;
+
+			for (final byte[] part : this.parts) {
+				System.arraycopy(part, 0, data, offset, part.length);
+
+				offset += part.length;
+			}
+
+			return data;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package org.mineacademy.bfo.bungee.message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mineacademy.bfo.bungee.BungeeMessageType;
+import org.mineacademy.bfo.collection.SerializedMap;
+import org.mineacademy.bfo.exception.FoException;
+
+import lombok.Getter;
+
+/**
+ * Represents the compiled layout of a {@link BungeeMessageType}, built only once
+ * from its {@link BungeeMessageType#getContent()} and then reused by every message
+ * of that type to check field types and pre-size the buffers.
+ */
+final class MessageSchema {
+
+	/**
+	 * Compiled schemas by their action
+	 */
+	private static final Map<BungeeMessageType, MessageSchema> compiledSchemas = new ConcurrentHashMap<>();
+
+	/**
+	 * The action this schema was compiled from
+	 */
+	@Getter
+	private final BungeeMessageType action;
+
+	/**
+	 * The content types with primitives converted to their wrappers
+	 */
+	private final Class<?>[] fields;
+
+	/**
+	 * The position of the action in its enum, sent in compact headers
+	 */
+	@Getter
+	private final int ordinal;
+
+	/**
+	 * The action name encoded as UTF-8 without the length prefix, which equals
+	 * modified UTF-8 for names without null or supplementary characters
+	 */
+	@Getter
+	private final byte[] encodedName;
+
+	/**
+	 * The estimated amount of bytes the fields take when written
+	 */
+	@Getter
+	private final int estimatedSize;
+
+	/*
+	 * Compile a new schema from the action content
+	 */
+	private MessageSchema(BungeeMessageType action) {
+		final Class<?>[] content = action.getContent();
+
+		this.action = action;
+		this.fields = new Class<?>[content.length];
+		this.encodedName = action.name().getBytes(StandardCharsets.UTF_8);
+		this.ordinal = action instanceof Enum ? ((Enum<?>) action).ordinal() : -1;
+
+		int estimatedSize = 0;
+
+		for (int i = 0; i < content.length; i++) {
+			final Class<?> field = wrap(content[i]);
+
+			this.fields[i] = field;
+			estimatedSize += estimateSize(field);
+		}
+
+		this.estimatedSize = estimatedSize;
+	}
+
+	/**
+	 * Return how many fields the action holds
+	 *
+	 * @return
+	 */
+	int getFieldCount() {
+		return this.fields.length;
+	}
+
+	/**
+	 * Return the declared type of the field at the given position,
+	 * with primitives converted to their wrappers
+	 *
+	 * @param index
+	 * @return
+	 */
+	Class<?> getField(int index) {
+		if (index >= this.fields.length)
+			throw new FoException("Head out of bounds! Max data size for " + this.action.name() + " is " + this.fields.length);
+
+		return this.fields[index];
+	}
+
+	/**
+	 * Checks if the given type may be written or read at the given position,
+	 * throwing an error if not
+	 *
+	 * @param head
+	 * @param typeOf
+	 */
+	void checkField(int head, Class<?> typeOf) {
+		if (head >= this.fields.length)
+			throw new FoException("Head out of bounds! Max data size for " + this.action.name() + " is " + this.fields.length);
+
+		final Class<?> declared = this.fields[head];
+		final Class<?> given = wrap(typeOf);
+
+		if (!isCompatible(declared, given))
+			throw new FoException("Action " + this.action.name() + " expects " + declared.getSimpleName() + " at position " + head + ", got " + given.getSimpleName());
+	}
+
+	/**
+	 * Return the schema for the given action, compiling it on first call
+	 *
+	 * @param action
+	 * @return
+	 */
+	static MessageSchema of(BungeeMessageType action) {
+		return compiledSchemas.computeIfAbsent(action, MessageSchema::new);
+	}
+
+	/*
+	 * Return true if the given type can be put to a field of the declared type.
+	 *
+	 * Maps, enums and UUIDs are all sent as strings so we keep accepting them
+	 * in String fields to stay compatible with older content declarations.
+	 */
+	private static boolean isCompatible(Class<?> declared, Class<?> given) {
+		if (declared.isAssignableFrom(given))
+			return true;
+
+		return declared == String.class && (given == SerializedMap.class || given == UUID.class || given.isEnum());
+	}
+
+	/*
+	 * Estimate how many bytes the given type takes when written
+	 */
+	private static int estimateSize(Class<?> type) {
+		if (type == Boolean.class || type == Byte.class)
+			return 1;
+
+		if (type == Short.class)
+			return 2;
+
+		if (type == Integer.class || type == Float.class)
+			return 4;
+
+		if (type == Long.class || type == Double.class)
+			return 8;
+
+		if (type == UUID.class)
+			return 2 + 36;
+
+		if (type == SerializedMap.class || type == byte[].class)
+			return 128;
+
+		return 2 + 16;
+	}
+
+	/*
+	 * Convert primitives to their wrappers so int.class matches Integer.class
+	 */
+	private static Class<?> wrap(Class<?> type) {
+		if (!type.isPrimitive())
+			return type;
+
+		if (type == boolean.class)
+			return Boolean.class;
+
+		if (type == byte.class)
+			return Byte.class;
+
+		if (type == short.class)
+			return Short.class;
+
+		if (type == int.class)
+			return Integer.class;
+
+		if (type == long.class)
+			return Long.class;
+
+		if (type == float.class)
+			return Float.class;
+
+		if (type == double.class)
+			return Double.class;
+
+		if (type == char.class)
+			return Character.class;
+
+		return type;
+	}
+}
@@ -0,0 +1,264 @@
+package org.mineacademy.bfo.bungee.message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.mineacademy.bfo.exception.FoException;
+
+/**
+ * A growable byte buffer writing primitives directly in the same
+ * big-endian format as {@link java.io.DataOutput} without boxing them.
+ */
+final class MessageWriter {
+
+	/**
+	 * The maximum length of a string written using {@link #writeUTF(String)}
+	 */
+	private static final int MAX_UTF_LENGTH = 65535;
+
+	/**
+	 * The buffer we write to
+	 */
+	private byte[] buffer;
+
+	/**
+	 * The amount of bytes written
+	 */
+	private int size;
+
+	/**
+	 * Create a new writer with the given initial capacity
+	 *
+	 * @param capacity
+	 */
+	MessageWriter(int capacity) {
+		this.buffer = new byte[Math.max(16, capacity)];
+	}
+
+	/**
+	 * Write a boolean
+	 *
+	 * @param value
+	 */
+	void writeBoolean(boolean value) {
+		ensureCapacity(1);
+
+		this.buffer[this.size++] = (byte) (value ? 1 : 0);
+	}
+
+	/**
+	 * Write a byte
+	 *
+	 * @param value
+	 */
+	void writeByte(int value) {
+		ensureCapacity(1);
+
+		this.buffer[this.size++] = (byte) value;
+	}
+
+	/**
+	 * Write a short
+	 *
+	 * @param value
+	 */
+	void writeShort(int value) {
+		ensureCapacity(2);
+
+		this.buffer[this.size++] = (byte) (value >>> 8);
+		this.buffer[this.size++] = (byte) value;
+	}
+
+	/**
+	 * Write an integer
+	 *
+	 * @param value
+	 */
+	void writeInt(int value) {
+		ensureCapacity(4);
+
+		this.buffer[this.size++] = (byte) (value >>> 24);
+		this.buffer[this.size++] = (byte) (value >>> 16);
+		this.buffer[this.size++] = (byte) (value >>> 8);
+		this.buffer[this.size++] = (byte) value;
+	}
+
+	/**
+	 * Write a long
+	 *
+	 * @param value
+	 */
+	void writeLong(long value) {
+		ensureCapacity(8);
+
+		for (int shift = 56; shift >= 0; shift -= 8)
+			this.buffer[this.size++] = (byte) (value >>> shift);
+	}
+
+	/**
+	 * Write a float
+	 *
+	 * @param value
+	 */
+	void writeFloat(float value) {
+		writeInt(Float.floatToIntBits(value));
+	}
+
+	/**
+	 * Write a double
+	 *
+	 * @param value
+	 */
+	void writeDouble(double value) {
+		writeLong(Double.doubleToLongBits(value));
+	}
+
+	/**
+	 * Write an unsigned integer using 7 bits per byte, small
+	 * numbers such as action ordinals take a single byte
+	 *
+	 * @param value
+	 */
+	void writeVarInt(int value) {
+		ensureCapacity(5);
+
+		while ((value & ~0x7F) != 0) {
+			this.buffer[this.size++] = (byte) (value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+
+		this.buffer[this.size++] = (byte) value;
+	}
+
+	/**
+	 * Write the raw bytes
+	 *
+	 * @param bytes
+	 */
+	void writeBytes(byte[] bytes) {
+		writeBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Write the raw bytes from the given range
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 */
+	void writeBytes(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+
+		System.arraycopy(bytes, offset, this.buffer, this.size, length);
+		this.size += length;
+	}
+
+	/**
+	 * Write a string prefixed by its length, using the modified UTF-8
+	 * encoding from {@link java.io.DataOutput#writeUTF(String)}
+	 *
+	 * @param string
+	 */
+	void writeUTF(String string) {
+		final int length = string.length();
+		int utfLength = 0;
+
+		for (int i = 0; i < length; i++) {
+			final char character = string.charAt(i);
+
+			if (character >= 0x0001 && character <= 0x007F)
+				utfLength++;
+
+			else if (character > 0x07FF)
+				utfLength += 3;
+
+			else
+				utfLength += 2;
+		}
+
+		if (utfLength > MAX_UTF_LENGTH)
+			throw new FoException("Cannot write a string of " + utfLength + " bytes, the maximum is " + MAX_UTF_LENGTH + " bytes");
+
+		ensureCapacity(2 + utfLength);
+
+		this.buffer[this.size++] = (byte) (utfLength >>> 8);
+		this.buffer[this.size++] = (byte) utfLength;
+
+		for (int i = 0; i < length; i++) {
+			final char character = string.charAt(i);
+
+			if (character >= 0x0001 && character <= 0x007F)
+				this.buffer[this.size++] = (byte) character;
+
+			else if (character > 0x07FF) {
+				this.buffer[this.size++] = (byte) (0xE0 | character >> 12 & 0x0F);
+				this.buffer[this.size++] = (byte) (0x80 | character >> 6 & 0x3F);
+				this.buffer[this.size++] = (byte) (0x80 | character & 0x3F);
+
+			} else {
+				this.buffer[this.size++] = (byte) (0xC0 | character >> 6 & 0x1F);
+				this.buffer[this.size++] = (byte) (0x80 | character & 0x3F);
+			}
+		}
+	}
+
+	/**
+	 * Write a string as UTF-8 prefixed by its varint length,
+	 * used in compact frames
+	 *
+	 * @param string
+	 */
+	void writeString(String string) {
+		final byte[] encoded = string.getBytes(StandardCharsets.UTF_8);
+
+		writeVarInt(encoded.length);
+		writeBytes(encoded);
+	}
+
+	/**
+	 * Write an already encoded string prefixed by its length
+	 *
+	 * @param encoded
+	 */
+	void writeEncodedUTF(byte[] encoded) {
+		writeShort(encoded.length);
+		writeBytes(encoded);
+	}
+
+	/**
+	 * Return the amount of bytes written
+	 *
+	 * @return
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Return the internal buffer, only valid up to {@link #size()}
+	 *
+	 * @return
+	 */
+	byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	/**
+	 * Return a copy of the written bytes
+	 *
+	 * @return
+	 */
+	byte[] toByteArray() {
+		return Arrays.copyOf(this.buffer, this.size);
+	}
+
+	/*
+	 * Grow the buffer if the given amount of bytes would not fit
+	 */
+	private void ensureCapacity(int extra) {
+		final int required = this.size + extra;
+
+		if (required > this.buffer.length)
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(required, this.buffer.length << 1));
+	}
+}
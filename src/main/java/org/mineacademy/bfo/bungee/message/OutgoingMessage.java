@@ -1,8 +1,8 @@
 package org.mineacademy.bfo.bungee.message;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Predicate;
 
 import org.mineacademy.bfo.Valid;
 import org.mineacademy.bfo.bungee.BungeeListener;
@@ -12,9 +12,8 @@ import org.mineacademy.bfo.debug.Debugger;
 import org.mineacademy.bfo.exception.FoException;
 import org.mineacademy.bfo.plugin.SimplePlugin;
 
-import com.google.common.io.ByteArrayDataOutput;
-import com.google.common.io.ByteStreams;
-
+import lombok.NonNull;
+import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.Connection;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
@@ -28,9 +27,29 @@ import net.md_5.bungee.api.connection.Server;
 public final class OutgoingMessage extends Message {
 
 	/**
-	 * The pending queue to write the message
+	 * The buffer we write the message into directly
+	 */
+	private final MessageWriter writer;
+
+	/**
+	 * Are we writing a compact (v2) frame? See {@link MessageFrame}
 	 */
-	private final List<Object> queue = new ArrayList<>();
+	private final boolean compact;
+
+	/**
+	 * The size of the header, data after it can be compressed
+	 */
+	private final int headerSize;
+
+	/**
+	 * The frames compiled when last sending, reused until more data are written
+	 */
+	private List<byte[]> compiledFrames;
+
+	/**
+	 * The amount of bytes written when the frames were compiled
+	 */
+	private int compiledSize = -1;
 
 	/**
 	 * Construct a new outgoing packet with null UUID and empty server name
@@ -61,20 +80,101 @@ public final class OutgoingMessage extends Message {
 	 * @param action
 	 */
 	public OutgoingMessage(BungeeListener listener, String server, UUID senderUid, BungeeMessageType action) {
+		this(listener, server, senderUid, action, 0, 0);
+	}
+
+	/*
+	 * Create a new outgoing message with the given request flag and id,
+	 * such messages are always written as compact frames
+	 */
+	OutgoingMessage(BungeeListener listener, String server, UUID senderUid, BungeeMessageType action, int flags, int requestId) {
 		super(listener);
 
-		setSenderUid(senderUid.toString());
+		setSenderUid(senderUid);
 		setServerName(server);
 		setAction(action);
 
-		// -----------------------------------------------------------------
-		// We are automatically writing the first two strings assuming the
-		// first is the senders server name and the second is the action
-		// -----------------------------------------------------------------
+		final MessageSchema schema = getSchema();
+
+		this.compact = listener.useCompactHeader() || flags != 0;
+
+		if (this.compact) {
+			this.writer = new MessageWriter(1 + 1 + 5 + 16 + 5 + server.length() + 5 + schema.getEstimatedSize());
+
+			// See MessageFrame for the header layout
+			writer.writeByte(MessageFrame.MAGIC_V2);
+			writer.writeByte(flags);
+			writer.writeVarInt(schema.getOrdinal());
+			writer.writeLong(senderUid.getMostSignificantBits());
+			writer.writeLong(senderUid.getLeastSignificantBits());
+			writer.writeString(server);
+
+			if (flags != 0)
+				writer.writeVarInt(requestId);
+
+		} else {
+			this.writer = new MessageWriter(2 + 36 + 2 + server.length() + 2 + schema.getEncodedName().length + schema.getEstimatedSize());
+
+			// -----------------------------------------------------------------
+			// We are automatically writing the first two strings assuming the
+			// first is the senders server name and the second is the action
+			// -----------------------------------------------------------------
+
+			writer.writeUTF(senderUid.toString());
+			writer.writeUTF(getServerName());
+			writer.writeEncodedUTF(schema.getEncodedName());
+		}
+
+		this.headerSize = writer.size();
+	}
+
+	/**
+	 * Write the given values into the message using the write method for their type
+	 *
+	 * @param values
+	 */
+	public void write(Object... values) {
+		for (final Object value : values) {
+			Valid.checkNotNull(value, "Added object must not be null!");
+
+			if (value instanceof String)
+				this.writeString((String) value);
+
+			else if (value instanceof Boolean)
+				this.writeBoolean((Boolean) value);
+
+			else if (value instanceof Byte)
+				this.writeByte((Byte) value);
+
+			else if (value instanceof Short)
+				this.writeShort((Short) value);
+
+			else if (value instanceof Integer)
+				this.writeInt((Integer) value);
+
+			else if (value instanceof Long)
+				this.writeLong((Long) value);
+
+			else if (value instanceof Float)
+				this.writeFloat((Float) value);
+
+			else if (value instanceof Double)
+				this.writeDouble((Double) value);
 
-		queue.add(senderUid);
-		queue.add(getServerName());
-		queue.add(getAction().name());
+			else if (value instanceof UUID)
+				this.writeUUID((UUID) value);
+
+			else if (value instanceof SerializedMap)
+				this.writeMap((SerializedMap) value);
+
+			else if (value instanceof Enum) {
+				moveHead(((Enum<?>) value).getDeclaringClass());
+
+				this.writeUTF(((Enum<?>) value).name());
+
+			} else
+				throw new FoException("Cannot write " + value.getClass().getSimpleName() + " into a message, use a String or a SerializedMap instead");
+		}
 	}
 
 	/**
@@ -82,8 +182,10 @@ public final class OutgoingMessage extends Message {
 	 *
 	 * @param map
 	 */
-	public void writeMap(SerializedMap map) {
-		write(map.toJson(), String.class);
+	public void writeMap(@NonNull SerializedMap map) {
+		moveHead(SerializedMap.class);
+
+		this.writeUTF(map.toJson());
 	}
 
 	/**
@@ -92,8 +194,12 @@ public final class OutgoingMessage extends Message {
 	 * @param messages
 	 */
 	public void writeString(String... messages) {
-		for (final String message : messages)
-			write(message, String.class);
+		for (final String message : messages) {
+			Valid.checkNotNull(message, "Added object must not be null!");
+			moveHead(String.class);
+
+			this.writeUTF(message);
+		}
 	}
 
 	/**
@@ -102,7 +208,9 @@ public final class OutgoingMessage extends Message {
 	 * @param bool
 	 */
 	public void writeBoolean(boolean bool) {
-		write(bool, Boolean.class);
+		moveHead(Boolean.class);
+
+		writer.writeBoolean(bool);
 	}
 
 	/**
@@ -111,7 +219,9 @@ public final class OutgoingMessage extends Message {
 	 * @param number
 	 */
 	public void writeByte(byte number) {
-		write(number, Byte.class);
+		moveHead(Byte.class);
+
+		writer.writeByte(number);
 	}
 
 	/**
@@ -120,7 +230,9 @@ public final class OutgoingMessage extends Message {
 	 * @param number
 	 */
 	public void writeDouble(double number) {
-		write(number, Double.class);
+		moveHead(Double.class);
+
+		writer.writeDouble(number);
 	}
 
 	/**
@@ -129,7 +241,9 @@ public final class OutgoingMessage extends Message {
 	 * @param number
 	 */
 	public void writeFloat(float number) {
-		write(number, Float.class);
+		moveHead(Float.class);
+
+		writer.writeFloat(number);
 	}
 
 	/**
@@ -138,7 +252,9 @@ public final class OutgoingMessage extends Message {
 	 * @param number
 	 */
 	public void writeInt(int number) {
-		write(number, Integer.class);
+		moveHead(Integer.class);
+
+		writer.writeInt(number);
 	}
 
 	/**
@@ -147,7 +263,9 @@ public final class OutgoingMessage extends Message {
 	 * @param number
 	 */
 	public void writeLong(long number) {
-		write(number, Long.class);
+		moveHead(Long.class);
+
+		writer.writeLong(number);
 	}
 
 	/**
@@ -156,7 +274,9 @@ public final class OutgoingMessage extends Message {
 	 * @param number
 	 */
 	public void writeShort(short number) {
-		write(number, Short.class);
+		moveHead(Short.class);
+
+		writer.writeShort(number);
 	}
 
 	/**
@@ -164,25 +284,20 @@ public final class OutgoingMessage extends Message {
 	 *
 	 * @param uuid
 	 */
-	public void writeUUID(UUID uuid) {
-		write(uuid, UUID.class);
+	public void writeUUID(@NonNull UUID uuid) {
+		moveHead(UUID.class);
+
+		this.writeUTF(uuid.toString());
 	}
 
-	/**
-	 * Write an object of the given type into the message
-	 * <p>
-	 * We move the head and ensure writing safety in accordance
-	 * to the {@link BungeeMessageType#getContent()} length and
-	 * data type at the given position
-	 *
-	 * @param object
-	 * @param typeOf
+	/*
+	 * Write the string in the format of the frame
 	 */
-	private void write(Object object, Class<?> typeOf) {
-		Valid.checkNotNull(object, "Added object must not be null!");
-
-		moveHead(typeOf);
-		queue.add(object);
+	private void writeUTF(String string) {
+		if (this.compact)
+			writer.writeString(string);
+		else
+			writer.writeUTF(string);
 	}
 
 	/**
@@ -199,13 +314,18 @@ public final class OutgoingMessage extends Message {
 		Valid.checkBoolean(connection instanceof Server, "Connection must be ServerConnection");
 
 		if (((Server) connection).getInfo().getPlayers().isEmpty()) {
-			Debugger.debug("bungee", "NOT sending data on " + getChannel() + " channel from " + getAction() + " to " + ((Server) connection).getInfo().getName() + " server because it is empty.");
+			getMetrics().recordEmptyServerDrop();
+
+			if (Debugger.isDebugged("bungee"))
+				Debugger.debug("bungee", "NOT sending data on " + getChannel() + " channel from " + getAction() + " to " + ((Server) connection).getInfo().getName() + " server because it is empty.");
 
 			return;
 		}
 
-		((Server) connection).sendData(getChannel(), compileData());
-		Debugger.debug("bungee", "Sending data on " + getChannel() + " channel from " + getAction() + " to " + ((Server) connection).getInfo().getName() + " server.");
+		this.deliver(((Server) connection).getInfo(), compileFrames(), false, null);
+
+		if (Debugger.isDebugged("bungee"))
+			Debugger.debug("bungee", "Sending data on " + getChannel() + " channel from " + getAction() + " to " + ((Server) connection).getInfo().getName() + " server.");
 	}
 
 	/**
@@ -214,60 +334,172 @@ public final class OutgoingMessage extends Message {
 	 * @param server
 	 */
 	public void send(ServerInfo server) {
+		this.send(server, false, null);
+	}
+
+	/*
+	 * Send this message to the given server, storing it in the batch
+	 * if the server empties before the batch is sent
+	 */
+	private void send(ServerInfo server, boolean store, Object key) {
 
 		if (server.getPlayers().isEmpty()) {
-			Debugger.debug("bungee", "NOT sending data on " + getChannel() + " channel from " + getAction() + " to " + server.getName() + " server because it is empty.");
+			getMetrics().recordEmptyServerDrop();
+
+			if (Debugger.isDebugged("bungee"))
+				Debugger.debug("bungee", "NOT sending data on " + getChannel() + " channel from " + getAction() + " to " + server.getName() + " server because it is empty.");
 
 			return;
 		}
 
-		server.sendData(getChannel(), compileData());
-		Debugger.debug("bungee", "Sending data on " + getChannel() + " channel from " + getAction() + " to " + server.getName() + " server.");
+		this.deliver(server, compileFrames(), store, key);
+
+		if (Debugger.isDebugged("bungee"))
+			Debugger.debug("bungee", "Sending data on " + getChannel() + " channel from " + getAction() + " to " + server.getName() + " server.");
 	}
 
 	/**
-	 * Delegate write methods for the byte array data output
-	 * based on the queue
+	 * Send this message to all servers with players
+	 */
+	public void sendToAll() {
+		this.sendToServers(server -> true);
+	}
+
+	/**
+	 * Send this message to all servers with players matching the given filter
+	 * <p>
+	 * The data are compiled only once and shared between all servers,
+	 * nothing is compiled if no server matches.
 	 *
-	 * @return
+	 * @param filter
 	 */
-	public byte[] compileData() {
-		final ByteArrayDataOutput out = ByteStreams.newDataOutput();
+	public void sendToServers(@NonNull Predicate<ServerInfo> filter) {
+		List<byte[]> frames = null;
+		int count = 0;
+
+		for (final ServerInfo server : ProxyServer.getInstance().getServers().values()) {
+			if (server.getPlayers().isEmpty() || !filter.test(server))
+				continue;
+
+			if (frames == null)
+				frames = compileFrames();
+
+			this.deliver(server, frames, false, null);
+			count++;
+		}
+
+		if (Debugger.isDebugged("bungee"))
+			Debugger.debug("bungee", "Sending data on " + getChannel() + " channel from " + getAction() + " to " + count + " servers.");
+	}
+
+	/*
+	 * Send the given frames to the server directly or through its batcher,
+	 * which counts them once they are actually sent
+	 */
+	private void deliver(ServerInfo server, List<byte[]> frames, boolean store, Object key) {
+		if (isBatched()) {
+			MessageBatcher.of(server, getListener()).add(frames, getMetrics(), store, key);
+
+			return;
+		}
+
+		int bytes = 0;
+
+		for (final byte[] frame : frames) {
+			server.sendData(getChannel(), frame);
+
+			bytes += frame.length;
+		}
+
+		getMetrics().recordOut(bytes);
+	}
+
+	/**
+	 * Send this message to the given server, or store it to be sent
+	 * when a player connects there if the server is empty, see {@link ServerMessageQueue}
+	 *
+	 * @param server
+	 */
+	public void sendOrStore(ServerInfo server) {
+		this.sendOrStore(server, null);
+	}
+
+	/**
+	 * Send this message to the given server, or store it to be sent
+	 * when a player connects there if the server is empty, see {@link ServerMessageQueue}
+	 * <p>
+	 * A stored message with the same key is replaced by this one
+	 *
+	 * @param server
+	 * @param key the deduplication key, or null
+	 */
+	public void sendOrStore(ServerInfo server, Object key) {
+		if (server.getPlayers().isEmpty()) {
+			ServerMessageQueue.of(server).add(getChannel(), compileFrames(), key, getMetrics());
+
+			if (Debugger.isDebugged("bungee"))
+				Debugger.debug("bungee", "Storing data on " + getChannel() + " channel from " + getAction() + " for " + server.getName() + " server because it is empty.");
+
+			return;
+		}
 
-		for (final Object object : queue)
-			if (object instanceof String)
-				out.writeUTF((String) object);
+		this.send(server, true, key);
+	}
 
-			else if (object instanceof Boolean)
-				out.writeBoolean((Boolean) object);
+	/*
+	 * Compile the data and split them into chunks if they exceed
+	 * the maximum frame size, see {@link BungeeListener#getMaxFrameSize()}
+	 *
+	 * The frames are never modified after compiling so we can reuse them
+	 * until more data are written
+	 */
+	private List<byte[]> compileFrames() {
+		if (this.compiledFrames == null || this.compiledSize != writer.size()) {
+			final long start = System.nanoTime();
 
-			else if (object instanceof Byte)
-				out.writeByte((Byte) object);
+			this.compiledFrames = MessageFrame.split(compileData(), getListener().getMaxFrameSize());
+			this.compiledSize = writer.size();
 
-			else if (object instanceof Double)
-				out.writeDouble((Double) object);
+			getMetrics().recordEncode(System.nanoTime() - start);
+		}
 
-			else if (object instanceof Float)
-				out.writeFloat((Float) object);
+		return this.compiledFrames;
+	}
 
-			else if (object instanceof Integer)
-				out.writeInt((Integer) object);
+	/*
+	 * Return true if the listener collects messages into batches
+	 */
+	private boolean isBatched() {
+		return getListener().getBatchWindowTicks() >= 0;
+	}
 
-			else if (object instanceof Long)
-				out.writeLong((Long) object);
+	/**
+	 * Return a copy of the data written so far, compressing them
+	 * if they exceed {@link BungeeListener#getCompressionThreshold()}
+	 *
+	 * @return
+	 */
+	public byte[] compileData() {
+		final int threshold = getListener().getCompressionThreshold();
+		final int bodySize = writer.size() - this.headerSize;
+
+		if (this.compact && threshold >= 0 && bodySize > threshold) {
+			final byte[] compressed = MessageFrame.compress(writer.getBuffer(), this.headerSize, bodySize);
 
-			else if (object instanceof Short)
-				out.writeShort((Short) object);
+			if (compressed != null) {
+				final MessageWriter frame = new MessageWriter(this.headerSize + 5 + compressed.length);
 
-			else if (object instanceof byte[])
-				out.write((byte[]) object);
+				frame.writeBytes(writer.getBuffer(), 0, this.headerSize);
+				frame.writeVarInt(bodySize);
+				frame.writeBytes(compressed);
 
-			else if (object instanceof UUID)
-				out.writeUTF(object.toString());
+				final byte[] data = frame.toByteArray();
+				data[1] |= MessageFrame.FLAG_COMPRESSED;
 
-			else
-				throw new FoException("Unsupported write of " + object.getClass().getSimpleName() + " to channel " + getChannel() + " with action " + getAction().toString());
+				return data;
+			}
+		}
 
-		return out.toByteArray();
+		return writer.toByteArray();
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
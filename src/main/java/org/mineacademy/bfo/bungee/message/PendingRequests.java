@@ -0,0 +1,191 @@
+package org.mineacademy.bfo.bungee.message;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mineacademy.bfo.Common;
+import org.mineacademy.bfo.Valid;
+import org.mineacademy.bfo.bungee.BungeeListener;
+import org.mineacademy.bfo.bungee.BungeeMessageType;
+import org.mineacademy.bfo.debug.Debugger;
+import org.mineacademy.bfo.exception.FoException;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+
+/**
+ * Tracks requests sent to servers and completes them when their response arrives,
+ * see {@link BungeeListener#request(ServerInfo, BungeeMessageType, Object...)}.
+ * <p>
+ * Requests and responses are compact frames flagged with {@link MessageFrame#FLAG_REQUEST}
+ * and {@link MessageFrame#FLAG_RESPONSE} carrying the same request id.
+ * At most {@link #getCapacity()} requests may wait for their response at once,
+ * further requests fail immediately. Responses only complete requests sent to
+ * the server they came from, so servers cannot answer requests of each other.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class PendingRequests {
+
+	/**
+	 * Requests waiting for their response by their id
+	 */
+	private static final Map<Integer, PendingRequest> requests = new ConcurrentHashMap<>();
+
+	/**
+	 * The id of the last request
+	 */
+	private static final AtomicInteger lastRequestId = new AtomicInteger();
+
+	/**
+	 * How many requests may wait for their response at once
+	 */
+	@Getter
+	@Setter
+	private static volatile int capacity = 1_000;
+
+	/**
+	 * Send a new request to the given server, returning a future completed with
+	 * the response or failed with a {@link TimeoutException} after the given ticks.
+	 * <p>
+	 * Cancelling the future stops waiting for the response.
+	 * The future is completed on the thread receiving the response, use its async
+	 * methods to run heavy work elsewhere.
+	 *
+	 * @param listener
+	 * @param server
+	 * @param action
+	 * @param timeoutTicks
+	 * @param payload the values to write, see {@link OutgoingMessage#write(Object...)}
+	 * @return
+	 */
+	public static CompletableFuture<IncomingMessage> send(@NonNull BungeeListener listener, @NonNull ServerInfo server, @NonNull BungeeMessageType action, int timeoutTicks, Object... payload) {
+		Valid.checkBoolean(timeoutTicks > 0, "Request timeout must be positive, got " + timeoutTicks + " ticks");
+
+		final CompletableFuture<IncomingMessage> future = new CompletableFuture<>();
+
+		if (server.getPlayers().isEmpty()) {
+			future.completeExceptionally(new FoException("Cannot send " + action + " request to " + server.getName() + " server because it is empty"));
+
+			return future;
+		}
+
+		final int requestId = nextRequestId();
+
+		synchronized (requests) {
+			if (requests.size() >= capacity) {
+				future.completeExceptionally(new FoException("Cannot send " + action + " request to " + server.getName() + " server, " + capacity + " requests are already waiting for a response"));
+
+				return future;
+			}
+
+			requests.put(requestId, new PendingRequest(server.getName(), future));
+		}
+
+		final ScheduledTask timeoutTask = Common.runLaterAsync(timeoutTicks, () -> future.completeExceptionally(new TimeoutException("No response to " + action + " request from " + server.getName() + " server in " + timeoutTicks + " ticks")));
+
+		// Remove once answered, timed out or cancelled
+		future.whenComplete((response, error) -> {
+			requests.remove(requestId);
+			timeoutTask.cancel();
+		});
+
+		try {
+			final OutgoingMessage message = new OutgoingMessage(listener, server.getName(), new UUID(0, 0), action, MessageFrame.FLAG_REQUEST, requestId);
+
+			message.write(payload);
+			message.send(server);
+
+		} catch (final Throwable t) {
+			future.completeExceptionally(t);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Complete the request the given response belongs to, returning false
+	 * if the request is no longer waiting, such as when it timed out,
+	 * or if it was sent to a different server than the response came from
+	 *
+	 * @param response
+	 * @return
+	 */
+	public static boolean complete(@NonNull IncomingMessage response) {
+		final PendingRequest request = requests.get(response.getRequestId());
+
+		// Trust the connection over the server name the sender wrote into the message
+		final String serverName = response.getSender() != null ? response.getSender().getInfo().getName() : response.getServerName();
+
+		if (request == null) {
+			Debugger.debug("bungee", "Ignoring response to " + response.getAction() + " request " + response.getRequestId() + " from " + serverName + " server, it is no longer waiting.");
+
+			return false;
+		}
+
+		if (!request.serverName.equals(serverName)) {
+			Debugger.debug("bungee", "Ignoring response to " + response.getAction() + " request " + response.getRequestId() + " from " + serverName + " server, it was sent to " + request.serverName + " server.");
+
+			return false;
+		}
+
+		return request.future.complete(response);
+	}
+
+	/**
+	 * Fail all requests waiting for their response, called automatically when the plugin disables
+	 */
+	public static void cancelAll() {
+		for (final PendingRequest request : new ArrayList<>(requests.values()))
+			request.future.completeExceptionally(new FoException("Plugin is disabling, the request was cancelled"));
+	}
+
+	/**
+	 * Return how many requests are waiting for their response
+	 *
+	 * @return
+	 */
+	public static int getPendingCount() {
+		return requests.size();
+	}
+
+	/*
+	 * Return a new positive request id, 0 is never used
+	 */
+	private static int nextRequestId() {
+		int requestId;
+
+		do
+			requestId = lastRequestId.incrementAndGet() & Integer.MAX_VALUE;
+		while (requestId == 0);
+
+		return requestId;
+	}
+
+	/**
+	 * A request waiting for its response
+	 */
+	@RequiredArgsConstructor
+	private static final class PendingRequest {
+
+		/**
+		 * The server the request was sent to
+		 */
+		private final String serverName;
+
+		/**
+		 * The future completed with the response
+		 */
+		private final CompletableFuture<IncomingMessage> future;
+	}
+}
@@ -0,0 +1,218 @@
+package org.mineacademy.bfo.bungee.message;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.mineacademy.bfo.debug.Debugger;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.Server;
+
+/**
+ * Stores messages for a server without players, since plugin messages
+ * can only travel through a player connection, and sends them in order
+ * once the first player connects to that server.
+ * <p>
+ * Each queue holds at most {@link #getCapacity()} messages, dropping the
+ * oldest ones when full, and messages expire after {@link #getTimeToLiveMillis()}.
+ * Messages stored with the same key replace each other so only the latest is sent.
+ * <p>
+ * Stored, replaced, expired, dropped and sent messages are counted in the {@link MessageMetrics}
+ * of their channel and action.
+ */
+public final class ServerMessageQueue {
+
+	/**
+	 * Queues by their server name
+	 */
+	private static final Map<String, ServerMessageQueue> queues = new ConcurrentHashMap<>();
+
+	/**
+	 * How many messages to store per server at most
+	 */
+	@Getter
+	@Setter
+	private static volatile int capacity = 200;
+
+	/**
+	 * How long to keep stored messages for
+	 */
+	@Getter
+	@Setter
+	private static volatile long timeToLiveMillis = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * The server name
+	 */
+	@Getter
+	private final String serverName;
+
+	/**
+	 * Stored messages in the order of storing, keyed by their deduplication key
+	 * or by a unique object for messages without a key
+	 */
+	private final LinkedHashMap<Object, StoredMessage> messages = new LinkedHashMap<>();
+
+	/*
+	 * Create a new queue for the given server
+	 */
+	private ServerMessageQueue(String serverName) {
+		this.serverName = serverName;
+	}
+
+	/**
+	 * Store the given data to be sent on the given channel when a player connects,
+	 * replacing a previously stored message with the same key
+	 *
+	 * @param channel
+	 * @param data
+	 * @param key the deduplication key, or null to never replace this message
+	 * @param metrics the metrics of the message
+	 */
+	public void add(@NonNull String channel, @NonNull byte[] data, Object key, @NonNull MessageMetrics metrics) {
+		this.add(channel, Collections.singletonList(data), key, metrics);
+	}
+
+	/**
+	 * Store the given frames to be sent on the given channel when a player connects,
+	 * replacing a previously stored message with the same key. The frames are sent
+	 * together in their order, used for messages split into chunks
+	 *
+	 * @param channel
+	 * @param frames
+	 * @param key the deduplication key, or null to never replace this message
+	 * @param metrics the metrics of the message
+	 */
+	public synchronized void add(@NonNull String channel, @NonNull List<byte[]> frames, Object key, @NonNull MessageMetrics metrics) {
+		final long now = System.currentTimeMillis();
+
+		this.removeExpired(now);
+
+		if (key == null)
+			key = new Object();
+
+		// Remove first so that the replacement moves to the end of the queue
+		final StoredMessage replaced = this.messages.remove(key);
+
+		if (replaced != null)
+			replaced.metrics.recordStoredReplacement();
+
+		while (!this.messages.isEmpty() && this.messages.size() >= capacity) {
+			final Iterator<StoredMessage> it = this.messages.values().iterator();
+
+			it.next().metrics.recordStoredOverflow();
+			it.remove();
+		}
+
+		this.messages.put(key, new StoredMessage(channel, frames, metrics, now + timeToLiveMillis));
+		metrics.recordStored();
+	}
+
+	/**
+	 * Send all stored messages that did not expire through the given connection
+	 *
+	 * @param connection
+	 */
+	public synchronized void drain(@NonNull Server connection) {
+		this.removeExpired(System.currentTimeMillis());
+
+		if (this.messages.isEmpty())
+			return;
+
+		final int count = this.messages.size();
+
+		for (final StoredMessage message : this.messages.values()) {
+			for (final byte[] frame : message.frames)
+				connection.sendData(message.channel, frame);
+
+			message.metrics.recordStoredDelivery();
+		}
+
+		this.messages.clear();
+
+		Debugger.debug("bungee", "Sent " + count + " stored messages to " + this.serverName + " server.");
+	}
+
+	/**
+	 * Return how many messages are stored now
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return this.messages.size();
+	}
+
+	/*
+	 * Remove messages whose time to live has passed
+	 */
+	private void removeExpired(long now) {
+		for (final Iterator<StoredMessage> it = this.messages.values().iterator(); it.hasNext();) {
+			final StoredMessage message = it.next();
+
+			if (message.expiresAt <= now) {
+				it.remove();
+
+				message.metrics.recordStoredExpiry();
+			}
+		}
+	}
+
+	/**
+	 * Return the queue for the given server
+	 *
+	 * @param server
+	 * @return
+	 */
+	public static ServerMessageQueue of(@NonNull ServerInfo server) {
+		return queues.computeIfAbsent(server.getName(), ServerMessageQueue::new);
+	}
+
+	/**
+	 * Send stored messages for the server of the given connection, called
+	 * automatically when a player connects to a server
+	 *
+	 * @param connection
+	 */
+	public static void drainTo(@NonNull Server connection) {
+		final ServerMessageQueue queue = queues.get(connection.getInfo().getName());
+
+		if (queue != null)
+			queue.drain(connection);
+	}
+
+	/**
+	 * Represents a message waiting to be sent
+	 */
+	@RequiredArgsConstructor
+	private static final class StoredMessage {
+
+		/**
+		 * The channel to send on
+		 */
+		private final String channel;
+
+		/**
+		 * The message frames
+		 */
+		private final List<byte[]> frames;
+
+		/**
+		 * The metrics of the message
+		 */
+		private final MessageMetrics metrics;
+
+		/**
+		 * When this message expires
+		 */
+		private final long expiresAt;
+	}
+}
@@ -835,6 +835,15 @@ public final class SerializedMap extends StrictCollection implements Iterable<Ma
 		}
 	}
 
+	/**
+	 * Converts this map into compact binary data, see {@link SerializedMapCodec}
+	 *
+	 * @return
+	 */
+	public byte[] toBinary() {
+		return SerializedMapCodec.encode(this);
+	}
+
 	/**
 	 * @see Map#isEmpty()
 	 *
@@ -1060,4 +1069,15 @@ public final class SerializedMap extends StrictCollection implements Iterable<Ma
 			}
 		}
 	}
+
+	/**
+	 * Parses the data from {@link #toBinary()} into a serialized map, data
+	 * not in the binary format are parsed as UTF-8 JSON
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static SerializedMap fromBinary(@NonNull final byte[] data) {
+		return SerializedMapCodec.decode(data);
+	}
 }
@@ -0,0 +1,608 @@
+package org.mineacademy.bfo.collection;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.mineacademy.bfo.exception.FoException;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+
+/**
+ * Encodes {@link SerializedMap} into a compact binary form that is smaller
+ * to store and faster to read than JSON, and keeps numbers in their exact type.
+ * <p>
+ * Encoded data start with {@link #MAGIC} which is never the first byte of
+ * UTF-8 text, followed by:
+ * <pre>
+ * byte    version
+ * byte    flags
+ * varint  amount of keys
+ * string  each key
+ * value   the map
+ * </pre>
+ * Each value starts with its type tag. Numbers are written as zigzag varints so
+ * small ones take a single byte, strings are UTF-8 prefixed by their varint length.
+ * Map keys are written once in the key table above and referenced by their
+ * varint position + 1, 0 means a key that is not a string follows as a value.
+ * When the {@link #FLAG_COMPRESSED} flag is set, the data after the flags
+ * are the varint length of the original data followed by the data
+ * compressed using Deflate.
+ * <p>
+ * {@link #decode(byte[])} reads data not starting with {@link #MAGIC} as JSON.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public final class SerializedMapCodec {
+
+	/**
+	 * The first byte of encoded data
+	 */
+	public static final byte MAGIC = (byte) 0xF5;
+
+	/**
+	 * The version of the format
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The flag indicating the data after the flags are compressed
+	 */
+	public static final int FLAG_COMPRESSED = 0x01;
+
+	/**
+	 * Data shorter than this are not worth compressing
+	 */
+	private static final int COMPRESSION_THRESHOLD = 256;
+
+	/**
+	 * The size of the header before the data that can be compressed
+	 */
+	private static final int HEADER_SIZE = 3;
+
+	/**
+	 * Value type tags
+	 */
+	private static final int TAG_NULL = 0;
+	private static final int TAG_FALSE = 1;
+	private static final int TAG_TRUE = 2;
+	private static final int TAG_INT = 3;
+	private static final int TAG_LONG = 4;
+	private static final int TAG_DOUBLE = 5;
+	private static final int TAG_FLOAT = 6;
+	private static final int TAG_STRING = 7;
+	private static final int TAG_LIST = 8;
+	private static final int TAG_MAP = 9;
+	private static final int TAG_SHORT = 10;
+	private static final int TAG_BYTE = 11;
+	private static final int TAG_CHAR = 12;
+
+	/**
+	 * Reused compressors, creating them allocates native memory
+	 */
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+	/**
+	 * Reused decompressors, creating them allocates native memory
+	 */
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * Return true if the given data were encoded using this codec
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static boolean isEncoded(byte[] data) {
+		return data.length > 0 && data[0] == MAGIC;
+	}
+
+	/**
+	 * Encode the given map, compressing large data when it makes them smaller
+	 *
+	 * @param map
+	 * @return
+	 */
+	public static byte[] encode(@NonNull SerializedMap map) {
+		return encode(map, true);
+	}
+
+	/**
+	 * Encode the given map
+	 *
+	 * @param map
+	 * @param compress whether to compress large data when it makes them smaller
+	 * @return
+	 */
+	public static byte[] encode(@NonNull SerializedMap map, boolean compress) {
+		final Map<String, Integer> keys = new LinkedHashMap<>();
+		final Writer body = new Writer(256);
+
+		writeValue(body, map.serialize(), keys);
+
+		final Writer writer = new Writer(HEADER_SIZE + 5 + keys.size() * 8 + body.size);
+
+		writer.writeByte(MAGIC);
+		writer.writeByte(VERSION);
+		writer.writeByte(0);
+		writer.writeVarInt(keys.size());
+
+		for (final String key : keys.keySet())
+			writer.writeString(key);
+
+		writer.writeBytes(body.buffer, 0, body.size);
+
+		final int length = writer.size - HEADER_SIZE;
+
+		if (compress && length >= COMPRESSION_THRESHOLD) {
+			final byte[] compressed = compress(writer.buffer, HEADER_SIZE, length);
+
+			if (compressed != null) {
+				final Writer compressedWriter = new Writer(HEADER_SIZE + 5 + compressed.length);
+
+				compressedWriter.writeByte(MAGIC);
+				compressedWriter.writeByte(VERSION);
+				compressedWriter.writeByte(FLAG_COMPRESSED);
+				compressedWriter.writeVarInt(length);
+				compressedWriter.writeBytes(compressed, 0, compressed.length);
+
+				return compressedWriter.toByteArray();
+			}
+		}
+
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Decode the given data, reading them as UTF-8 JSON if they were not
+	 * encoded using this codec
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static SerializedMap decode(@NonNull byte[] data) {
+		if (!isEncoded(data))
+			return SerializedMap.fromJson(new String(data, StandardCharsets.UTF_8));
+
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+
+			buffer.get();
+
+			final int version = buffer.get() & 0xFF;
+
+			if (version != VERSION)
+				throw new FoException("Unsupported serialized map version " + version + ", expected " + VERSION);
+
+			final int flags = buffer.get() & 0xFF;
+
+			if ((flags & FLAG_COMPRESSED) != 0) {
+				final int originalLength = readVarInt(buffer);
+
+				// Deflate cannot shrink data more than about a thousand times
+				if (originalLength < 0 || originalLength > buffer.remaining() * 1032L)
+					throw new FoException("Encoded serialized map is corrupted, got compressed length " + originalLength);
+
+				buffer = ByteBuffer.wrap(decompress(data, buffer.position(), buffer.remaining(), originalLength));
+			}
+
+			final int keyCount = readLength(buffer);
+			final String[] keys = new String[keyCount];
+
+			for (int i = 0; i < keyCount; i++)
+				keys[i] = readString(buffer);
+
+			final Object value = readValue(buffer, keys);
+
+			if (!(value instanceof Map))
+				throw new FoException("Encoded data do not contain a map but " + value);
+
+			return SerializedMap.of(value);
+
+		} catch (final BufferUnderflowException ex) {
+			throw new FoException(ex, "Encoded serialized map is truncated");
+		}
+	}
+
+	/*
+	 * Write the given serialized value
+	 */
+	private static void writeValue(Writer writer, Object value, Map<String, Integer> keys) {
+		if (value == null)
+			writer.writeByte(TAG_NULL);
+
+		else if (value instanceof Boolean)
+			writer.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+
+		else if (value instanceof Integer) {
+			writer.writeByte(TAG_INT);
+			writer.writeVarLong(zigzag((Integer) value));
+
+		} else if (value instanceof Long) {
+			writer.writeByte(TAG_LONG);
+			writer.writeVarLong(zigzag((Long) value));
+
+		} else if (value instanceof Short) {
+			writer.writeByte(TAG_SHORT);
+			writer.writeVarLong(zigzag((Short) value));
+
+		} else if (value instanceof Byte) {
+			writer.writeByte(TAG_BYTE);
+			writer.writeByte((Byte) value);
+
+		} else if (value instanceof Double) {
+			writer.writeByte(TAG_DOUBLE);
+			writer.writeLong(Double.doubleToLongBits((Double) value));
+
+		} else if (value instanceof Float) {
+			writer.writeByte(TAG_FLOAT);
+			writer.writeInt(Float.floatToIntBits((Float) value));
+
+		} else if (value instanceof Character) {
+			writer.writeByte(TAG_CHAR);
+			writer.writeVarInt((Character) value);
+
+		} else if (value instanceof String) {
+			writer.writeByte(TAG_STRING);
+			writer.writeString((String) value);
+
+		} else if (value instanceof StrictMap)
+			writeValue(writer, ((StrictMap<?, ?>) value).getSource(), keys);
+
+		else if (value instanceof SerializedMap)
+			writeValue(writer, ((SerializedMap) value).asMap(), keys);
+
+		else if (value instanceof Map) {
+			final Map<?, ?> map = (Map<?, ?>) value;
+
+			writer.writeByte(TAG_MAP);
+			writer.writeVarInt(map.size());
+
+			for (final Map.Entry<?, ?> entry : map.entrySet()) {
+				final Object key = entry.getKey();
+
+				if (key instanceof String) {
+					Integer index = keys.get(key);
+
+					if (index == null) {
+						index = keys.size();
+
+						keys.put((String) key, index);
+					}
+
+					writer.writeVarInt(index + 1);
+
+				} else {
+					writer.writeVarInt(0);
+					writeValue(writer, key, keys);
+				}
+
+				writeValue(writer, entry.getValue(), keys);
+			}
+
+		} else if (value instanceof Iterable) {
+			final List<Object> list = new ArrayList<>();
+
+			for (final Object element : (Iterable<?>) value)
+				list.add(element);
+
+			writer.writeByte(TAG_LIST);
+			writer.writeVarInt(list.size());
+
+			for (final Object element : list)
+				writeValue(writer, element, keys);
+
+		} else if (value instanceof Object[])
+			writeValue(writer, Arrays.asList((Object[]) value), keys);
+
+		else
+			throw new FoException("Cannot encode " + value.getClass().getSimpleName() + " into a serialized map, serialize it first: " + value);
+	}
+
+	/*
+	 * Read a value written by writeValue
+	 */
+	private static Object readValue(ByteBuffer buffer, String[] keys) {
+		final int tag = buffer.get() & 0xFF;
+
+		switch (tag) {
+			case TAG_NULL:
+				return null;
+
+			case TAG_FALSE:
+				return false;
+
+			case TAG_TRUE:
+				return true;
+
+			case TAG_INT:
+				return (int) unzigzag(readVarLong(buffer));
+
+			case TAG_LONG:
+				return unzigzag(readVarLong(buffer));
+
+			case TAG_SHORT:
+				return (short) unzigzag(readVarLong(buffer));
+
+			case TAG_BYTE:
+				return buffer.get();
+
+			case TAG_DOUBLE:
+				return buffer.getDouble();
+
+			case TAG_FLOAT:
+				return buffer.getFloat();
+
+			case TAG_CHAR:
+				return (char) readVarInt(buffer);
+
+			case TAG_STRING:
+				return readString(buffer);
+
+			case TAG_LIST: {
+				final int size = readLength(buffer);
+				final List<Object> list = new ArrayList<>(size);
+
+				for (int i = 0; i < size; i++)
+					list.add(readValue(buffer, keys));
+
+				return list;
+			}
+
+			case TAG_MAP: {
+				final int size = readLength(buffer);
+				final Map<Object, Object> map = new LinkedHashMap<>(size * 4 / 3 + 1);
+
+				for (int i = 0; i < size; i++) {
+					final int keyIndex = readVarInt(buffer);
+					final Object key;
+
+					if (keyIndex == 0)
+						key = readValue(buffer, keys);
+
+					else if (keyIndex <= keys.length)
+						key = keys[keyIndex - 1];
+
+					else
+						throw new FoException("Encoded serialized map refers to key " + keyIndex + " but only has " + keys.length);
+
+					map.put(key, readValue(buffer, keys));
+				}
+
+				return map;
+			}
+
+			default:
+				throw new FoException("Unknown value type " + tag + " in encoded serialized map");
+		}
+	}
+
+	/*
+	 * Read a string prefixed by its varint length
+	 */
+	private static String readString(ByteBuffer buffer) {
+		final int length = readLength(buffer);
+		final String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+
+		buffer.position(buffer.position() + length);
+
+		return string;
+	}
+
+	/*
+	 * Read a varint length, failing if it is negative or above the remaining bytes
+	 * so that corrupted data cannot make us allocate huge arrays, each element
+	 * takes at least one byte
+	 */
+	private static int readLength(ByteBuffer buffer) {
+		final int length = readVarInt(buffer);
+
+		if (length < 0 || length > buffer.remaining())
+			throw new FoException("Encoded serialized map is corrupted, got length " + length + " with " + buffer.remaining() + " bytes left");
+
+		return length;
+	}
+
+	/*
+	 * Read an unsigned integer written using 7 bits per byte
+	 */
+	private static int readVarInt(ByteBuffer buffer) {
+		return (int) readVarLong(buffer);
+	}
+
+	/*
+	 * Read an unsigned long written using 7 bits per byte
+	 */
+	private static long readVarLong(ByteBuffer buffer) {
+		long value = 0;
+
+		for (int shift = 0; shift < 70; shift += 7) {
+			final byte next = buffer.get();
+			value |= (long) (next & 0x7F) << shift;
+
+			if ((next & 0x80) == 0)
+				return value;
+		}
+
+		throw new FoException("Encoded serialized map contains a varint that is too long");
+	}
+
+	/*
+	 * Map signed numbers to unsigned so that small negative numbers stay small
+	 */
+	private static long zigzag(long value) {
+		return value << 1 ^ value >> 63;
+	}
+
+	/*
+	 * Reverse zigzag
+	 */
+	private static long unzigzag(long value) {
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	/*
+	 * Compress the given range of data, returning null if compressing
+	 * would not make the data smaller
+	 */
+	private static byte[] compress(byte[] data, int offset, int length) {
+		final Deflater deflater = deflaters.get();
+		final byte[] buffer = new byte[length];
+
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+
+			final int compressedLength = deflater.deflate(buffer);
+
+			return deflater.finished() ? Arrays.copyOf(buffer, compressedLength) : null;
+
+		} finally {
+			deflater.reset();
+		}
+	}
+
+	/*
+	 * Decompress the given range of data
+	 */
+	private static byte[] decompress(byte[] data, int offset, int length, int originalLength) {
+		final Inflater inflater = inflaters.get();
+		final byte[] original = new byte[originalLength];
+
+		try {
+			inflater.setInput(data, offset, length);
+
+			if (inflater.inflate(original) != originalLength || !inflater.finished())
+				throw new FoException("Compressed serialized map is corrupted, expected " + originalLength + " bytes");
+
+			return original;
+
+		} catch (final DataFormatException ex) {
+			throw new FoException(ex, "Failed to decompress serialized map");
+
+		} finally {
+			inflater.reset();
+		}
+	}
+
+	/**
+	 * A growable byte buffer
+	 */
+	private static final class Writer {
+
+		/**
+		 * The buffer we write to
+		 */
+		private byte[] buffer;
+
+		/**
+		 * The amount of bytes written
+		 */
+		private int size;
+
+		/*
+		 * Create a new writer with the given initial capacity
+		 */
+		private Writer(int capacity) {
+			this.buffer = new byte[Math.max(16, capacity)];
+		}
+
+		/*
+		 * Write a byte
+		 */
+		private void writeByte(int value) {
+			this.ensureCapacity(1);
+
+			this.buffer[this.size++] = (byte) value;
+		}
+
+		/*
+		 * Write an integer
+		 */
+		private void writeInt(int value) {
+			this.ensureCapacity(4);
+
+			this.buffer[this.size++] = (byte) (value >>> 24);
+			this.buffer[this.size++] = (byte) (value >>> 16);
+			this.buffer[this.size++] = (byte) (value >>> 8);
+			this.buffer[this.size++] = (byte) value;
+		}
+
+		/*
+		 * Write a long
+		 */
+		private void writeLong(long value) {
+			this.ensureCapacity(8);
+
+			for (int shift = 56; shift >= 0; shift -= 8)
+				this.buffer[this.size++] = (byte) (value >>> shift);
+		}
+
+		/*
+		 * Write an unsigned integer using 7 bits per byte
+		 */
+		private void writeVarInt(int value) {
+			this.writeVarLong(value & 0xFFFFFFFFL);
+		}
+
+		/*
+		 * Write an unsigned long using 7 bits per byte
+		 */
+		private void writeVarLong(long value) {
+			this.ensureCapacity(10);
+
+			while ((value & ~0x7FL) != 0) {
+				this.buffer[this.size++] = (byte) (value & 0x7F | 0x80);
+				value >>>= 7;
+			}
+
+			this.buffer[this.size++] = (byte) value;
+		}
+
+		/*
+		 * Write a string as UTF-8 prefixed by its varint length
+		 */
+		private void writeString(String string) {
+			final byte[] encoded = string.getBytes(StandardCharsets.UTF_8);
+
+			this.writeVarInt(encoded.length);
+			this.writeBytes(encoded, 0, encoded.length);
+		}
+
+		/*
+		 * Write the raw bytes from the given range
+		 */
+		private void writeBytes(byte[] bytes, int offset, int length) {
+			this.ensureCapacity(length);
+
+			System.arraycopy(bytes, offset, this.buffer, this.size, length);
+			this.size += length;
+		}
+
+		/*
+		 * Return a copy of the written bytes
+		 */
+		private byte[] toByteArray() {
+			return Arrays.copyOf(this.buffer, this.size);
+		}
+
+		/*
+		 * Grow the buffer if the given amount of bytes would not fit
+		 */
+		private void ensureCapacity(int extra) {
+			final int required = this.size + extra;
+
+			if (required > this.buffer.length)
+				this.buffer = Arrays.copyOf(this.buffer, Math.max(required, this.buffer.length << 1));
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package org.mineacademy.bfo.command;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.mineacademy.bfo.bungee.message.MessageMetrics;
+import org.mineacademy.bfo.bungee.message.MessageMetrics.Snapshot;
+import org.mineacademy.bfo.bungee.message.MessageMetrics.Timings;
+
+/**
+ * A sample sub-command that you can automatically add to your main command group
+ * to show how many messages each channel and action sends and receives and
+ * how long they take, using /{label} metrics [reset]
+ */
+public final class MetricsCommand extends SimpleSubCommand {
+
+	/**
+	 * How many actions to show for each channel
+	 */
+	private static final int SHOWN_ACTIONS = 10;
+
+	/**
+	 * Create a new sub-command with the given permission.
+	 *
+	 * @param permission
+	 */
+	public MetricsCommand(String permission) {
+		this();
+
+		setPermission(permission);
+	}
+
+	public MetricsCommand() {
+		super("metrics");
+
+		setDescription("Show plugin messaging metrics.");
+		setUsage("[reset]");
+	}
+
+	@Override
+	protected void onCommand() {
+		if (args.length > 0 && "reset".equalsIgnoreCase(args[0])) {
+			MessageMetrics.reset();
+
+			tell("&7Messaging metrics have been reset.");
+			return;
+		}
+
+		final List<Snapshot> snapshots = MessageMetrics.snapshot();
+
+		if (snapshots.isEmpty()) {
+			tell("&7No plugin messages were sent or received yet.");
+
+			return;
+		}
+
+		final Set<String> channels = new LinkedHashSet<>();
+
+		for (final Snapshot snapshot : snapshots)
+			channels.add(snapshot.getChannel());
+
+		final List<String> lines = new ArrayList<>();
+
+		for (final String channel : channels) {
+			lines.add("&6" + channel + " &7" + this.formatCounts(MessageMetrics.snapshot(channel)));
+
+			final List<Snapshot> actions = new ArrayList<>();
+
+			for (final Snapshot snapshot : snapshots)
+				if (snapshot.getChannel().equals(channel))
+					actions.add(snapshot);
+
+			// Show the actions taking the most time first
+			actions.sort(Comparator.comparingLong((Snapshot snapshot) -> snapshot.getHandlerTimes().getTotalNanos() + snapshot.getEncodeTimes().getTotalNanos() + snapshot.getDecodeTimes().getTotalNanos()).reversed());
+
+			for (final Snapshot action : actions.subList(0, Math.min(SHOWN_ACTIONS, actions.size()))) {
+				lines.add(" &f" + action.getAction() + " &7" + this.formatCounts(action));
+				lines.add("   &7encode " + this.formatTimings(action.getEncodeTimes()) + ", decode " + this.formatTimings(action.getDecodeTimes()) + ", handler " + this.formatTimings(action.getHandlerTimes()));
+			}
+		}
+
+		tellNoPrefix(lines);
+	}
+
+	/*
+	 * Format message and byte counts
+	 */
+	private String formatCounts(Snapshot snapshot) {
+		return "in " + snapshot.getMessagesIn() + " (" + this.formatBytes(snapshot.getBytesIn()) + "), out " + snapshot.getMessagesOut() + " (" + this.formatBytes(snapshot.getBytesOut()) + "), empty server drops " + snapshot.getEmptyServerDrops() + ", dispatch rejections " + snapshot.getDispatchRejections()
+				+ ", stored " + snapshot.getStoredMessages() + " (replaced " + snapshot.getStoredReplacements() + ", expired " + snapshot.getStoredExpiries() + ", queue full " + snapshot.getStoredOverflows() + ", sent " + snapshot.getStoredDeliveries() + ")";
+	}
+
+	/*
+	 * Format mean and 99th percentile times
+	 */
+	private String formatTimings(Timings timings) {
+		return timings.getCount() == 0 ? "-" : this.formatNanos(timings.getMeanNanos()) + "/" + this.formatNanos(timings.getPercentileNanos(0.99)) + " p99";
+	}
+
+	/*
+	 * Format nanoseconds as microseconds or milliseconds
+	 */
+	private String formatNanos(long nanos) {
+		return nanos < 1_000_000 ? (nanos / 1_000) + "us" : String.format("%.1fms", nanos / 1_000_000D);
+	}
+
+	/*
+	 * Format bytes as kilobytes or megabytes
+	 */
+	private String formatBytes(long bytes) {
+		return bytes < 1024 * 1024 ? String.format("%.1fkB", bytes / 1024D) : String.format("%.1fMB", bytes / (1024D * 1024D));
+	}
+
+	/**
+	 * @see org.mineacademy.bfo.command.SimpleCommand#tabComplete()
+	 */
+	@Override
+	protected List<String> tabComplete() {
+		return args.length == 1 ? completeLastWord("reset") : NO_COMPLETE;
+	}
+}
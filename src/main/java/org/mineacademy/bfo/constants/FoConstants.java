@@ -38,6 +38,11 @@ public final class FoConstants {
 		 */
 		public static final String DATA = "data.db";
 
+		/**
+		 * The folder for local databases used instead of MySQL, see {@link org.mineacademy.bfo.database.SimpleFlatDatabase#connectLocal(String)}
+		 */
+		public static final String LOCAL_DATABASES = "databases";
+
 		/**
 		 * Files related to the ChatControl plugin
 		 */
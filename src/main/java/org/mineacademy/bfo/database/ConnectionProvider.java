@@ -0,0 +1,27 @@
+package org.mineacademy.bfo.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Provides connections to a database for {@link SimpleDatabase}.
+ * <p>
+ * Each call borrows a connection for a single unit of work, closing it
+ * returns it to the provider so it must always be closed, ideally using
+ * try-with-resources.
+ */
+public interface ConnectionProvider {
+
+	/**
+	 * Borrow a connection, waiting if none is available
+	 *
+	 * @return
+	 * @throws SQLException if no connection could be made or the wait timed out
+	 */
+	Connection getConnection() throws SQLException;
+
+	/**
+	 * Close all connections, no more connections can be borrowed after
+	 */
+	void close();
+}
@@ -0,0 +1,47 @@
+package org.mineacademy.bfo.database;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Stores the JSON data of {@link SimpleFlatDatabase} by unique id somewhere
+ * else than a MySQL database, see {@link SimpleFlatDatabase#connect(FlatStorage)}.
+ * <p>
+ * Implementations must be safe to call from multiple threads.
+ */
+public interface FlatStorage {
+
+	/**
+	 * Return the JSON data stored for the given unique id, or null if none
+	 *
+	 * @param uuid
+	 * @return
+	 * @throws IOException
+	 */
+	String read(UUID uuid) throws IOException;
+
+	/**
+	 * Store the JSON data for the given unique id, replacing the previous one
+	 *
+	 * @param uuid
+	 * @param name last known name
+	 * @param json the data, or null to remove it
+	 * @param updated when the data was saved
+	 * @throws IOException
+	 */
+	void write(UUID uuid, String name, String json, long updated) throws IOException;
+
+	/**
+	 * Remove data saved before the given time
+	 *
+	 * @param threshold
+	 * @return how many entries were removed
+	 * @throws IOException
+	 */
+	int removeOlderThan(long threshold) throws IOException;
+
+	/**
+	 * Write everything pending and release the storage, it cannot be used after
+	 */
+	void close();
+}
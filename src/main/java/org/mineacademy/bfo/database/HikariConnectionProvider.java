@@ -0,0 +1,103 @@
+package org.mineacademy.bfo.database;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.mineacademy.bfo.ReflectionUtil;
+import org.mineacademy.bfo.exception.FoException;
+
+/**
+ * Provides connections from a HikariCP data source.
+ * <p>
+ * We avoid using imports so that Foundation users don't have to include Hikari, you can
+ * optionally load the library using "libraries" and "legacy-libraries" feature in plugin.yml:
+ *
+ * <pre>
+ * libraries:
+ * - com.zaxxer:HikariCP:5.0.1
+ * legacy-libraries:
+ *  - org.slf4j:slf4j-simple:1.7.36
+ *  - org.slf4j:slf4j-api:1.7.36
+ *  - com.zaxxer:HikariCP:4.0.3
+ * </pre>
+ */
+public final class HikariConnectionProvider implements ConnectionProvider {
+
+	/**
+	 * The Hikari data source
+	 */
+	private final Object dataSource;
+
+	/**
+	 * The getConnection method of the data source
+	 */
+	private final Method getConnection;
+
+	/**
+	 * Create a new Hikari data source for the given database
+	 *
+	 * @param url
+	 * @param user
+	 * @param password
+	 * @param poolSize
+	 */
+	public HikariConnectionProvider(String url, String user, String password, int poolSize) {
+		final Object hikariConfig = ReflectionUtil.instantiate("com.zaxxer.hikari.HikariConfig");
+
+		if (url.startsWith("jdbc:mysql://"))
+			ReflectionUtil.invoke("setDriverClassName", hikariConfig, "com.mysql.cj.jdbc.Driver");
+
+		else if (url.startsWith("jdbc:mariadb://"))
+			ReflectionUtil.invoke("setDriverClassName", hikariConfig, "org.mariadb.jdbc.Driver");
+
+		else
+			throw new FoException("Unknown database driver, expected jdbc:mysql or jdbc:mariadb, got: " + url);
+
+		ReflectionUtil.invoke("setJdbcUrl", hikariConfig, url);
+		ReflectionUtil.invoke("setUsername", hikariConfig, user);
+		ReflectionUtil.invoke("setPassword", hikariConfig, password);
+		ReflectionUtil.invoke("setMaximumPoolSize", hikariConfig, poolSize);
+
+		final Constructor<?> dataSourceConst = ReflectionUtil.getConstructor("com.zaxxer.hikari.HikariDataSource", hikariConfig.getClass());
+
+		this.dataSource = ReflectionUtil.instantiate(dataSourceConst, hikariConfig);
+		this.getConnection = ReflectionUtil.getMethod(this.dataSource.getClass(), "getConnection", new Class<?>[0]);
+	}
+
+	/**
+	 * Return true if HikariCP is available
+	 *
+	 * @return
+	 */
+	public static boolean isAvailable() {
+		return ReflectionUtil.isClassAvailable("com.zaxxer.hikari.HikariConfig");
+	}
+
+	/**
+	 * @see org.mineacademy.bfo.database.ConnectionProvider#getConnection()
+	 */
+	@Override
+	public Connection getConnection() throws SQLException {
+		try {
+			return (Connection) this.getConnection.invoke(this.dataSource);
+
+		} catch (final ReflectiveOperationException ex) {
+			final Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+
+			throw new SQLException("Could not get HikariCP connection using " + this.getConnection, cause);
+		}
+	}
+
+	/**
+	 * @see org.mineacademy.bfo.database.ConnectionProvider#close()
+	 */
+	@Override
+	public void close() {
+		ReflectionUtil.invoke("close", this.dataSource);
+	}
+}
@@ -0,0 +1,752 @@
+package org.mineacademy.bfo.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.mineacademy.bfo.Common;
+import org.mineacademy.bfo.collection.expiringmap.NamedThreadFactory;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A {@link FlatStorage} keeping data in a single local file that is only ever
+ * appended to, with the position of the latest record of each unique id kept
+ * in memory so reads are one positional read.
+ * <p>
+ * Each record is written as:
+ * <pre>
+ * int length | byte type | long uuid most | long uuid least | long updated
+ * short name length | name | json | int crc32
+ * </pre>
+ * Records replaced or removed are left in the file until a background
+ * compaction rewrites it with only the latest records, once more than half
+ * of it is garbage. Reads and writes continue while compacting.
+ * <p>
+ * A record cut off by a crash fails its checksum and the file is truncated
+ * there when opened again. A broken record followed by more data means the
+ * file is corrupted, it is then copied aside and opening fails so that no
+ * valid records after it are lost.
+ */
+public final class LogFileStorage implements FlatStorage {
+
+	/**
+	 * When writes are forced to the disk
+	 */
+	public enum SyncPolicy {
+
+		/**
+		 * After every write, slowest but nothing is lost on power failure
+		 */
+		ALWAYS,
+
+		/**
+		 * Once a second in the background, up to a second of writes may be lost on power failure
+		 */
+		INTERVAL,
+
+		/**
+		 * Leave it to the operating system
+		 */
+		NEVER
+	}
+
+	/**
+	 * Record type storing data
+	 */
+	private static final byte PUT = 0;
+
+	/**
+	 * Record type removing data
+	 */
+	private static final byte DELETE = 1;
+
+	/**
+	 * The size of a record without the name and json
+	 */
+	private static final int RECORD_OVERHEAD = 4 + 1 + 16 + 8 + 2 + 4;
+
+	/**
+	 * Do not compact files smaller than this
+	 */
+	private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+	/**
+	 * The file
+	 */
+	private final File file;
+
+	/**
+	 * When to force writes to the disk
+	 */
+	private final SyncPolicy syncPolicy;
+
+	/**
+	 * The latest record of each unique id
+	 */
+	private final Map<UUID, RecordPosition> index = new ConcurrentHashMap<>();
+
+	/**
+	 * Reads share the channel, writes and swapping the compacted file take it exclusively
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Held while compacting so that only one compaction runs at once
+	 */
+	private final Object compactLock = new Object();
+
+	/**
+	 * Syncs and compacts in the background
+	 */
+	private final ScheduledExecutorService background;
+
+	/**
+	 * The open file
+	 */
+	private FileChannel channel;
+
+	/**
+	 * Where the next record is written
+	 */
+	private long size;
+
+	/**
+	 * How many bytes the records in the index take
+	 */
+	private long liveBytes;
+
+	/**
+	 * Whether there are writes not yet forced to the disk
+	 */
+	private volatile boolean unsynced = false;
+
+	/**
+	 * Whether the storage was closed
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Open the given file, creating it if it does not exist, and read its index
+	 *
+	 * @param file
+	 * @param syncPolicy
+	 * @throws IOException
+	 */
+	public LogFileStorage(@NonNull File file, @NonNull SyncPolicy syncPolicy) throws IOException {
+		this.file = file;
+		this.syncPolicy = syncPolicy;
+
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.readIndex();
+
+		this.background = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Local Storage " + file.getName() + " %d"));
+
+		if (syncPolicy == SyncPolicy.INTERVAL)
+			this.background.scheduleWithFixedDelay(this::syncQuietly, 1, 1, TimeUnit.SECONDS);
+
+		this.background.scheduleWithFixedDelay(this::compactIfNeeded, 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @see org.mineacademy.bfo.database.FlatStorage#read(java.util.UUID)
+	 */
+	@Override
+	public String read(@NonNull UUID uuid) throws IOException {
+		this.lock.readLock().lock();
+
+		try {
+			this.checkOpen();
+
+			final RecordPosition position = this.index.get(uuid);
+
+			if (position == null)
+				return null;
+
+			final ByteBuffer buffer = ByteBuffer.allocate(position.length);
+
+			readFully(this.channel, buffer, position.offset);
+			buffer.flip();
+
+			final Record record = Record.decode(buffer);
+
+			if (record == null || !record.uuid.equals(uuid))
+				throw new IOException("Corrupted record for " + uuid + " at " + position.offset + " in " + this.file);
+
+			return record.json;
+
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @see org.mineacademy.bfo.database.FlatStorage#write(java.util.UUID, java.lang.String, java.lang.String, long)
+	 */
+	@Override
+	public void write(@NonNull UUID uuid, String name, String json, long updated) throws IOException {
+		final ByteBuffer record = new Record(json == null ? DELETE : PUT, uuid, updated, name, json).encode();
+		final int length = record.remaining();
+
+		this.lock.writeLock().lock();
+
+		try {
+			this.checkOpen();
+
+			// Nothing to remove
+			if (json == null && !this.index.containsKey(uuid))
+				return;
+
+			final long offset = this.size;
+
+			writeFully(this.channel, record, offset);
+			this.size += length;
+
+			final RecordPosition previous = json == null ? this.index.remove(uuid) : this.index.put(uuid, new RecordPosition(offset, length, updated));
+
+			if (previous != null)
+				this.liveBytes -= previous.length;
+
+			if (json != null)
+				this.liveBytes += length;
+
+			if (this.syncPolicy == SyncPolicy.ALWAYS)
+				this.channel.force(false);
+			else
+				this.unsynced = true;
+
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes old entries from the index, the file is rewritten without them on the next
+	 * compaction. Should the server crash before, they are removed again on next start.
+	 *
+	 * @see org.mineacademy.bfo.database.FlatStorage#removeOlderThan(long)
+	 */
+	@Override
+	public int removeOlderThan(long threshold) throws IOException {
+		int removed = 0;
+
+		this.lock.writeLock().lock();
+
+		try {
+			this.checkOpen();
+
+			for (final Iterator<RecordPosition> it = this.index.values().iterator(); it.hasNext();) {
+				final RecordPosition position = it.next();
+
+				if (position.updated < threshold) {
+					it.remove();
+
+					this.liveBytes -= position.length;
+					removed++;
+				}
+			}
+
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+
+		if (removed > 0)
+			this.background.execute(this::compactIfNeeded);
+
+		return removed;
+	}
+
+	/**
+	 * Return how many unique ids have data stored
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.index.size();
+	}
+
+	/**
+	 * @see org.mineacademy.bfo.database.FlatStorage#close()
+	 */
+	@Override
+	public void close() {
+		this.background.shutdownNow();
+		this.lock.writeLock().lock();
+
+		try {
+			if (this.closed)
+				return;
+
+			this.closed = true;
+			this.channel.force(true);
+			this.channel.close();
+
+		} catch (final IOException ex) {
+			Common.error(ex, "Failed to close local storage " + this.file);
+
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrite the file with only the latest records
+	 * <p>
+	 * Records are copied without blocking reads and writes, only records
+	 * written meanwhile are copied while holding the lock before the new
+	 * file replaces the old one
+	 *
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		synchronized (this.compactLock) {
+			final Map<UUID, RecordPosition> snapshot;
+			final FileChannel source;
+			final long snapshotSize;
+
+			this.lock.readLock().lock();
+
+			try {
+				this.checkOpen();
+
+				snapshot = new HashMap<>(this.index);
+				source = this.channel;
+				snapshotSize = this.size;
+
+			} finally {
+				this.lock.readLock().unlock();
+			}
+
+			final Path path = this.file.toPath();
+			final Path temporary = path.resolveSibling(this.file.getName() + ".compact");
+			final Map<UUID, RecordPosition> newIndex = new HashMap<>();
+			boolean replaced = false;
+
+			try (FileChannel output = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				long position = 0;
+
+				// Copy the latest records as of the snapshot, the channel supports concurrent positional access
+				for (final Map.Entry<UUID, RecordPosition> entry : snapshot.entrySet()) {
+					final RecordPosition old = entry.getValue();
+
+					position += copyRecord(source, old.offset, old.length, output, position);
+					newIndex.put(entry.getKey(), new RecordPosition(position - old.length, old.length, old.updated));
+				}
+
+				this.lock.writeLock().lock();
+
+				try {
+					this.checkOpen();
+
+					// Replay records written while copying
+					for (long offset = snapshotSize; offset < this.size;) {
+						final ByteBuffer buffer = readRecord(this.channel, offset);
+						final Record record = Record.decode(buffer);
+
+						if (record == null)
+							throw new IOException("Corrupted record at " + offset + " in " + this.file + " written while compacting");
+
+						buffer.rewind();
+						writeFully(output, buffer, position);
+
+						if (record.type == PUT)
+							newIndex.put(record.uuid, new RecordPosition(position, buffer.limit(), record.updated));
+						else
+							newIndex.remove(record.uuid);
+
+						offset += buffer.limit();
+						position += buffer.limit();
+					}
+
+					// Drop entries removed from the index without a record, see removeOlderThan
+					newIndex.keySet().retainAll(this.index.keySet());
+
+					output.force(true);
+					this.channel.close();
+
+					try {
+						Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+						replaced = true;
+
+					} finally {
+						// Reopen whichever file is there now so we stay usable if moving failed
+						this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+					}
+
+					long live = 0;
+
+					for (final RecordPosition recordPosition : newIndex.values())
+						live += recordPosition.length;
+
+					this.index.clear();
+					this.index.putAll(newIndex);
+					this.size = position;
+					this.liveBytes = live;
+					this.unsynced = false;
+
+				} finally {
+					this.lock.writeLock().unlock();
+				}
+
+			} finally {
+				if (!replaced)
+					Files.deleteIfExists(temporary);
+			}
+		}
+	}
+
+	/*
+	 * Copy the record of the given length from the source to the output, returning its length
+	 */
+	private static int copyRecord(FileChannel source, long offset, int length, FileChannel output, long position) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+
+		readFully(source, buffer, offset);
+		buffer.flip();
+
+		writeFully(output, buffer, position);
+		return length;
+	}
+
+	/*
+	 * Read the whole record starting at the given position
+	 */
+	private static ByteBuffer readRecord(FileChannel channel, long position) throws IOException {
+		final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+
+		readFully(channel, lengthBuffer, position);
+		lengthBuffer.flip();
+
+		final int payload = lengthBuffer.getInt();
+
+		if (payload < RECORD_OVERHEAD - 8)
+			throw new IOException("Invalid record length " + payload + " at " + position);
+
+		final ByteBuffer buffer = ByteBuffer.allocate(4 + payload + 4);
+
+		readFully(channel, buffer, position);
+		buffer.flip();
+
+		return buffer;
+	}
+
+	/*
+	 * Compact when more than half of a large enough file is garbage
+	 */
+	private void compactIfNeeded() {
+		final boolean needed;
+
+		this.lock.readLock().lock();
+
+		try {
+			needed = !this.closed && this.size >= MIN_COMPACT_BYTES && this.size - this.liveBytes > this.liveBytes;
+
+		} finally {
+			this.lock.readLock().unlock();
+		}
+
+		if (needed)
+			try {
+				this.compact();
+
+			} catch (final Throwable t) {
+				Common.error(t, "Failed to compact local storage " + this.file);
+			}
+	}
+
+	/*
+	 * Force writes to the disk if any happened since the last time
+	 */
+	private void syncQuietly() {
+		if (!this.unsynced)
+			return;
+
+		this.lock.readLock().lock();
+
+		try {
+			if (!this.closed) {
+				this.unsynced = false;
+
+				this.channel.force(false);
+			}
+
+		} catch (final IOException ex) {
+			Common.error(ex, "Failed to sync local storage " + this.file);
+
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Read all records to build the index, truncating the file at a broken record
+	 * at its end, or failing if a broken record is followed by more data
+	 */
+	private void readIndex() throws IOException {
+		final long fileSize = this.channel.size();
+		final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		long position = 0;
+
+		while (position + 4 <= fileSize) {
+			lengthBuffer.clear();
+			readFully(this.channel, lengthBuffer, position);
+			lengthBuffer.flip();
+
+			final int payload = lengthBuffer.getInt();
+			final long length = 4L + payload + 4L;
+
+			if (payload < RECORD_OVERHEAD - 8 || position + length > fileSize)
+				break;
+
+			final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+
+			readFully(this.channel, buffer, position);
+			buffer.flip();
+
+			final Record record = Record.decode(buffer);
+
+			if (record == null)
+				break;
+
+			final RecordPosition previous = record.type == PUT
+					? this.index.put(record.uuid, new RecordPosition(position, (int) length, record.updated))
+					: this.index.remove(record.uuid);
+
+			if (previous != null)
+				this.liveBytes -= previous.length;
+
+			if (record.type == PUT)
+				this.liveBytes += length;
+
+			position += length;
+		}
+
+		if (position < fileSize) {
+			if (!this.isTornTail(position, fileSize)) {
+				final Path backup = this.file.toPath().resolveSibling(this.file.getName() + ".corrupt");
+
+				Files.copy(this.file.toPath(), backup, StandardCopyOption.REPLACE_EXISTING);
+				this.channel.close();
+
+				throw new IOException("Local storage " + this.file + " is corrupted at " + position + " of " + fileSize + " bytes and valid records may follow, "
+						+ "a copy was saved to " + backup + ". Repair or remove the file to continue.");
+			}
+
+			Common.warning("Local storage " + this.file + " has a broken record at " + position + ", probably from a crash. Removing " + (fileSize - position) + " bytes after it.");
+
+			this.channel.truncate(position);
+			this.channel.force(true);
+		}
+
+		this.size = position;
+	}
+
+	/*
+	 * Return true if the broken record at the given position is the last write cut off
+	 * by a crash: its length is cut off, it ends at or beyond the end of the file,
+	 * or only zeros the file system may leave behind follow
+	 */
+	private boolean isTornTail(long position, long fileSize) throws IOException {
+		if (fileSize - position < 4)
+			return true;
+
+		final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+
+		readFully(this.channel, lengthBuffer, position);
+		lengthBuffer.flip();
+
+		final int payload = lengthBuffer.getInt();
+
+		if (payload >= RECORD_OVERHEAD - 8 && position + 4L + payload + 4L >= fileSize)
+			return true;
+
+		final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+		for (long offset = position; offset < fileSize;) {
+			buffer.clear();
+
+			if (buffer.remaining() > fileSize - offset)
+				buffer.limit((int) (fileSize - offset));
+
+			readFully(this.channel, buffer, offset);
+			buffer.flip();
+
+			while (buffer.hasRemaining())
+				if (buffer.get() != 0)
+					return false;
+
+			offset += buffer.limit();
+		}
+
+		return true;
+	}
+
+	/*
+	 * Throw an error if closed
+	 */
+	private void checkOpen() throws IOException {
+		if (this.closed)
+			throw new IOException("Local storage " + this.file + " is closed");
+	}
+
+	/*
+	 * Read until the buffer is full
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position);
+
+			if (read < 0)
+				throw new IOException("Unexpected end of file at " + position);
+
+			position += read;
+		}
+	}
+
+	/*
+	 * Write the whole buffer
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	/**
+	 * Where the latest record of a unique id is in the file
+	 */
+	@RequiredArgsConstructor
+	private static final class RecordPosition {
+
+		/**
+		 * Where the record starts
+		 */
+		private final long offset;
+
+		/**
+		 * The record length including its length and checksum
+		 */
+		private final int length;
+
+		/**
+		 * When the data was saved
+		 */
+		private final long updated;
+	}
+
+	/**
+	 * A record in the file
+	 */
+	@RequiredArgsConstructor
+	private static final class Record {
+
+		/**
+		 * {@link LogFileStorage#PUT} or {@link LogFileStorage#DELETE}
+		 */
+		private final byte type;
+
+		/**
+		 * The unique id
+		 */
+		private final UUID uuid;
+
+		/**
+		 * When the data was saved
+		 */
+		private final long updated;
+
+		/**
+		 * Last known name or null
+		 */
+		private final String name;
+
+		/**
+		 * The data or null
+		 */
+		private final String json;
+
+		/*
+		 * Return this record ready to be written
+		 */
+		private ByteBuffer encode() {
+			final byte[] nameBytes = this.name == null ? new byte[0] : this.name.getBytes(StandardCharsets.UTF_8);
+			final byte[] jsonBytes = this.json == null ? new byte[0] : this.json.getBytes(StandardCharsets.UTF_8);
+			final int nameLength = Math.min(nameBytes.length, Short.MAX_VALUE);
+			final int payload = RECORD_OVERHEAD - 8 + nameLength + jsonBytes.length;
+
+			final ByteBuffer buffer = ByteBuffer.allocate(4 + payload + 4);
+
+			buffer.putInt(payload);
+			buffer.put(this.type);
+			buffer.putLong(this.uuid.getMostSignificantBits());
+			buffer.putLong(this.uuid.getLeastSignificantBits());
+			buffer.putLong(this.updated);
+			buffer.putShort((short) nameLength);
+			buffer.put(nameBytes, 0, nameLength);
+			buffer.put(jsonBytes);
+			buffer.putInt(checksum(buffer.array(), 4, payload));
+
+			buffer.flip();
+			return buffer;
+		}
+
+		/*
+		 * Read the record from the buffer holding exactly one, or return null if its checksum does not match
+		 */
+		private static Record decode(ByteBuffer buffer) {
+			final int payload = buffer.getInt();
+
+			if (payload < RECORD_OVERHEAD - 8 || buffer.remaining() != payload + 4)
+				return null;
+
+			if (checksum(buffer.array(), 4, payload) != buffer.getInt(4 + payload))
+				return null;
+
+			final byte type = buffer.get();
+			final UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+			final long updated = buffer.getLong();
+			final int nameLength = buffer.getShort();
+			final int jsonLength = payload - (RECORD_OVERHEAD - 8) - nameLength;
+
+			if (nameLength < 0 || jsonLength < 0 || (type != PUT && type != DELETE))
+				return null;
+
+			final String name = nameLength == 0 ? null : new String(buffer.array(), buffer.position(), nameLength, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + nameLength);
+
+			final String json = type == DELETE ? null : new String(buffer.array(), buffer.position(), jsonLength, StandardCharsets.UTF_8);
+
+			return new Record(type, uuid, updated, name, json);
+		}
+
+		/*
+		 * Return the crc32 of the given bytes
+		 */
+		private static int checksum(byte[] bytes, int offset, int length) {
+			final CRC32 crc = new CRC32();
+
+			crc.update(bytes, offset, length);
+			return (int) crc.getValue();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package org.mineacademy.bfo.database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a result set to an object, see
+ * {@link SimpleDatabase#query(String, RowMapper, Object...)}
+ *
+ * @param <T> the object type
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+	/**
+	 * Map the current row, do not move the cursor or close the result set
+	 *
+	 * @param resultSet
+	 * @return
+	 * @throws SQLException
+	 */
+	T map(ResultSet resultSet) throws SQLException;
+}
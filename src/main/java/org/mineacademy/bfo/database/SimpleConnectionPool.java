@@ -0,0 +1,523 @@
+package org.mineacademy.bfo.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mineacademy.bfo.Common;
+import org.mineacademy.bfo.Valid;
+import org.mineacademy.bfo.collection.expiringmap.NamedThreadFactory;
+import org.mineacademy.bfo.debug.Debugger;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A small bounded pool of JDBC connections used when HikariCP is not available.
+ * <p>
+ * Connections are validated when borrowed if they were idle for a while, replaced
+ * after {@link #getMaxLifetimeMillis()} and reset to auto-commit when returned.
+ * Connections borrowed for longer than {@link #getLeakThresholdMillis()} are reported,
+ * together with the code that borrowed them if {@link #isLeakTraceEnabled()}.
+ */
+public final class SimpleConnectionPool implements ConnectionProvider {
+
+	/**
+	 * How long a connection may stay idle before we validate it when borrowed
+	 */
+	private static final long VALIDATION_BYPASS_MILLIS = 1_000;
+
+	/**
+	 * The database URL
+	 */
+	private final String url;
+
+	/**
+	 * The user name
+	 */
+	private final String user;
+
+	/**
+	 * The password
+	 */
+	private final String password;
+
+	/**
+	 * The maximum amount of open connections
+	 */
+	@Getter
+	private final int maxSize;
+
+	/**
+	 * Permits for borrowing, one per connection
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * Idle connections, the most recently used first
+	 */
+	private final Deque<PooledConnection> idleConnections = new ArrayDeque<>();
+
+	/**
+	 * Borrowed connections, used to detect leaks
+	 */
+	private final Map<PooledConnection, Boolean> borrowedConnections = new ConcurrentHashMap<>();
+
+	/**
+	 * Checks for leaks and expired idle connections
+	 */
+	private final ScheduledExecutorService housekeeper;
+
+	/**
+	 * How long to wait for a connection before failing
+	 */
+	@Getter
+	@Setter
+	private volatile long borrowTimeoutMillis = 10_000;
+
+	/**
+	 * How long to keep a connection before replacing it
+	 */
+	@Getter
+	@Setter
+	private volatile long maxLifetimeMillis = TimeUnit.MINUTES.toMillis(30);
+
+	/**
+	 * How long a connection may be borrowed before it is reported as leaked, 0 to disable
+	 */
+	@Getter
+	@Setter
+	private volatile long leakThresholdMillis = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * Should we remember where each connection was borrowed to print it when reporting a leak?
+	 * Off by default since it captures a stack trace on every borrow
+	 */
+	@Getter
+	@Setter
+	private volatile boolean leakTraceEnabled = false;
+
+	/**
+	 * How many seconds to wait when validating a connection
+	 */
+	@Getter
+	@Setter
+	private volatile int validationTimeoutSeconds = 3;
+
+	/**
+	 * Is this pool closed?
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * How many connections were borrowed
+	 */
+	private final AtomicLong borrowCount = new AtomicLong();
+
+	/**
+	 * How many times we failed to borrow a connection in time
+	 */
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	/**
+	 * How many leaks were reported
+	 */
+	private final AtomicLong leakCount = new AtomicLong();
+
+	/**
+	 * The total time spent waiting for connections
+	 */
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+
+	/**
+	 * The longest time spent waiting for a connection
+	 */
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/**
+	 * Create a new pool for the given database, the JDBC driver must be loaded
+	 *
+	 * @param url
+	 * @param user
+	 * @param password
+	 * @param maxSize
+	 */
+	public SimpleConnectionPool(String url, String user, String password, int maxSize) {
+		Valid.checkBoolean(maxSize > 0, "Pool size must be positive, got " + maxSize);
+
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.maxSize = maxSize;
+		this.permits = new Semaphore(maxSize, true);
+		this.housekeeper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Database Pool Housekeeper %d"));
+
+		this.housekeeper.scheduleWithFixedDelay(this::runHousekeeping, 5, 5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @see org.mineacademy.bfo.database.ConnectionProvider#getConnection()
+	 */
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (this.closed)
+			throw new SQLException("Connection pool is closed");
+
+		final long start = System.nanoTime();
+
+		try {
+			if (!this.permits.tryAcquire(this.borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				this.timeoutCount.incrementAndGet();
+
+				throw new SQLException("Timed out after " + this.borrowTimeoutMillis + "ms waiting for a database connection, all " + this.maxSize + " are in use");
+			}
+
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+
+			throw new SQLException("Interrupted while waiting for a database connection", ex);
+		}
+
+		try {
+			final PooledConnection pooled = this.takeValidConnection();
+
+			this.recordWait(System.nanoTime() - start);
+			this.borrowCount.incrementAndGet();
+
+			pooled.borrowedAt = System.currentTimeMillis();
+			pooled.borrowTrace = this.leakTraceEnabled && this.leakThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null;
+			pooled.leakReported = false;
+
+			this.borrowedConnections.put(pooled, true);
+
+			return pooled.createProxy();
+
+		} catch (final SQLException | RuntimeException ex) {
+			this.permits.release();
+
+			throw ex;
+		}
+	}
+
+	/*
+	 * Return an idle connection that is still usable, or open a new one
+	 */
+	private PooledConnection takeValidConnection() throws SQLException {
+		PooledConnection pooled;
+
+		while ((pooled = this.pollIdle()) != null) {
+			final long now = System.currentTimeMillis();
+
+			if (now - pooled.createdAt > this.maxLifetimeMillis) {
+				pooled.closePhysically();
+
+				continue;
+			}
+
+			if (now - pooled.returnedAt < VALIDATION_BYPASS_MILLIS || this.isValid(pooled))
+				return pooled;
+
+			Debugger.debug("mysql", "Discarding broken pooled connection.");
+			pooled.closePhysically();
+		}
+
+		return new PooledConnection(DriverManager.getConnection(this.url, this.user, this.password));
+	}
+
+	/*
+	 * Return the most recently used idle connection, or null
+	 */
+	private PooledConnection pollIdle() {
+		synchronized (this.idleConnections) {
+			return this.idleConnections.pollFirst();
+		}
+	}
+
+	/*
+	 * Return true if the connection responds
+	 */
+	private boolean isValid(PooledConnection pooled) {
+		try {
+			return !pooled.connection.isClosed() && pooled.connection.isValid(this.validationTimeoutSeconds);
+
+		} catch (final SQLException ex) {
+			return false;
+		}
+	}
+
+	/*
+	 * Take the connection back, resetting its state
+	 */
+	private void release(PooledConnection pooled) {
+		this.borrowedConnections.remove(pooled);
+
+		try {
+			final boolean reusable = !this.closed && !pooled.connection.isClosed() && System.currentTimeMillis() - pooled.createdAt < this.maxLifetimeMillis;
+
+			if (reusable && !pooled.connection.getAutoCommit()) {
+				pooled.connection.rollback();
+				pooled.connection.setAutoCommit(true);
+			}
+
+			if (reusable) {
+				pooled.returnedAt = System.currentTimeMillis();
+
+				synchronized (this.idleConnections) {
+					this.idleConnections.offerFirst(pooled);
+				}
+
+			} else
+				pooled.closePhysically();
+
+		} catch (final SQLException ex) {
+			pooled.closePhysically();
+
+		} finally {
+			this.permits.release();
+		}
+	}
+
+	/*
+	 * Report leaked connections and close idle ones that lived too long
+	 */
+	private void runHousekeeping() {
+		final long now = System.currentTimeMillis();
+		final long leakThreshold = this.leakThresholdMillis;
+
+		if (leakThreshold > 0)
+			for (final PooledConnection pooled : this.borrowedConnections.keySet())
+				if (!pooled.leakReported && now - pooled.borrowedAt > leakThreshold) {
+					pooled.leakReported = true;
+					this.leakCount.incrementAndGet();
+
+					Common.warning("Database connection was borrowed " + (now - pooled.borrowedAt) + "ms ago and not returned yet, it may have leaked. Make sure to close it.");
+
+					if (pooled.borrowTrace != null)
+						pooled.borrowTrace.printStackTrace();
+					else
+						Common.warning("Enable leak traces on the connection pool to see where it was borrowed.");
+				}
+
+		synchronized (this.idleConnections) {
+			this.idleConnections.removeIf(pooled -> {
+				if (now - pooled.createdAt > this.maxLifetimeMillis) {
+					pooled.closePhysically();
+
+					return true;
+				}
+
+				return false;
+			});
+		}
+	}
+
+	/*
+	 * Update the wait metrics
+	 */
+	private void recordWait(long nanos) {
+		this.totalWaitNanos.addAndGet(nanos);
+
+		long max;
+
+		while (nanos > (max = this.maxWaitNanos.get()) && !this.maxWaitNanos.compareAndSet(max, nanos))
+			;
+	}
+
+	/**
+	 * @see org.mineacademy.bfo.database.ConnectionProvider#close()
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		this.housekeeper.shutdownNow();
+
+		synchronized (this.idleConnections) {
+			for (final PooledConnection pooled : this.idleConnections)
+				pooled.closePhysically();
+
+			this.idleConnections.clear();
+		}
+	}
+
+	/**
+	 * Return how many connections are borrowed now
+	 *
+	 * @return
+	 */
+	public int getActiveCount() {
+		return this.borrowedConnections.size();
+	}
+
+	/**
+	 * Return how many connections are open and not borrowed
+	 *
+	 * @return
+	 */
+	public int getIdleCount() {
+		synchronized (this.idleConnections) {
+			return this.idleConnections.size();
+		}
+	}
+
+	/**
+	 * Return how many connections were borrowed in total
+	 *
+	 * @return
+	 */
+	public long getBorrowCount() {
+		return this.borrowCount.get();
+	}
+
+	/**
+	 * Return how many times no connection was available in time
+	 *
+	 * @return
+	 */
+	public long getTimeoutCount() {
+		return this.timeoutCount.get();
+	}
+
+	/**
+	 * Return how many connections were reported as leaked
+	 *
+	 * @return
+	 */
+	public long getLeakCount() {
+		return this.leakCount.get();
+	}
+
+	/**
+	 * Return the average time spent waiting for a connection
+	 *
+	 * @return
+	 */
+	public double getAverageWaitMillis() {
+		final long count = this.borrowCount.get();
+
+		return count == 0 ? 0 : this.totalWaitNanos.get() / (double) count / 1_000_000D;
+	}
+
+	/**
+	 * Return the longest time spent waiting for a connection
+	 *
+	 * @return
+	 */
+	public double getMaxWaitMillis() {
+		return this.maxWaitNanos.get() / 1_000_000D;
+	}
+
+	/**
+	 * Represents a physical connection owned by this pool
+	 */
+	private final class PooledConnection {
+
+		/**
+		 * The physical connection
+		 */
+		private final Connection connection;
+
+		/**
+		 * When the connection was opened
+		 */
+		private final long createdAt = System.currentTimeMillis();
+
+		/**
+		 * When the connection was last returned
+		 */
+		private volatile long returnedAt = this.createdAt;
+
+		/**
+		 * When the connection was last borrowed
+		 */
+		private volatile long borrowedAt;
+
+		/**
+		 * Where the connection was last borrowed, or null if leak traces are off
+		 */
+		private volatile Throwable borrowTrace;
+
+		/**
+		 * Did we report this borrow as a leak already?
+		 */
+		private volatile boolean leakReported;
+
+		/*
+		 * Wrap the given physical connection
+		 */
+		private PooledConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		/*
+		 * Create a connection handed out to one borrower, closing it
+		 * returns the physical connection to the pool
+		 */
+		private Connection createProxy() {
+			final InvocationHandler handler = new InvocationHandler() {
+
+				private boolean returned = false;
+
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					final String name = method.getName();
+
+					if ("equals".equals(name))
+						return proxy == args[0];
+
+					if ("hashCode".equals(name))
+						return System.identityHashCode(proxy);
+
+					if ("close".equals(name)) {
+						if (!this.returned) {
+							this.returned = true;
+
+							SimpleConnectionPool.this.release(PooledConnection.this);
+						}
+
+						return null;
+					}
+
+					if ("isClosed".equals(name))
+						return this.returned || PooledConnection.this.connection.isClosed();
+
+					if (this.returned)
+						throw new SQLException("Connection was already returned to the pool");
+
+					try {
+						return method.invoke(PooledConnection.this.connection, args);
+
+					} catch (final InvocationTargetException ex) {
+						throw ex.getCause();
+					}
+				}
+			};
+
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, handler);
+		}
+
+		/*
+		 * Close the physical connection quietly
+		 */
+		private void closePhysically() {
+			try {
+				this.connection.close();
+
+			} catch (final SQLException ex) {
+				Debugger.debug("mysql", "Failed to close pooled connection: " + ex);
+			}
+		}
+	}
+}
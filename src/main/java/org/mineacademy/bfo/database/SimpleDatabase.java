@@ -1,17 +1,35 @@
 package org.mineacademy.bfo.database;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
 
 import org.mineacademy.bfo.Common;
 import org.mineacademy.bfo.FileUtil;
@@ -22,8 +40,9 @@ import org.mineacademy.bfo.TimeUtil;
 import org.mineacademy.bfo.Valid;
 import org.mineacademy.bfo.collection.SerializedMap;
 import org.mineacademy.bfo.collection.StrictMap;
+import org.mineacademy.bfo.collection.expiringmap.NamedThreadFactory;
 import org.mineacademy.bfo.debug.Debugger;
-import org.mineacademy.bfo.exception.FoException;
+import org.mineacademy.bfo.exception.DatabaseUnavailableException;
 import org.mineacademy.bfo.remain.Remain;
 
 import lombok.AccessLevel;
@@ -40,14 +59,58 @@ import lombok.RequiredArgsConstructor;
  * connection has been established.
  * <p>
  * To use this class you must know the MySQL command syntax!
+ * <p>
+ * Connections are borrowed from a {@link ConnectionProvider} for each query
+ * so queries from multiple threads do not share one connection, see
+ * {@link #createConnectionProvider(String, String, String)}.
  */
 public class SimpleDatabase {
 
 	/**
-	 * The established connection, or null if none
+	 * Creates the row sets returned from {@link #query(String)}
+	 */
+	private static volatile RowSetFactory rowSetFactory;
+
+	/**
+	 * The provider we borrow connections from, or null if not connected
 	 */
 	@Getter(value = AccessLevel.PROTECTED)
-	private volatile Connection connection;
+	private volatile ConnectionProvider connectionProvider;
+
+	/**
+	 * The connection returned from {@link #getConnection()}, held until closing
+	 */
+	private Connection sharedConnection;
+
+	/**
+	 * Prepared statements kept open for each connection, or null if not connected
+	 */
+	private volatile StatementCache statementCache;
+
+	/**
+	 * Whether the database answered the last health check, queries fail fast while false
+	 */
+	private volatile boolean healthy = false;
+
+	/**
+	 * Checks the database is reachable in the background, or null if not connected
+	 */
+	private ScheduledExecutorService healthChecker;
+
+	/**
+	 * The next scheduled health check
+	 */
+	private ScheduledFuture<?> nextHealthCheck;
+
+	/**
+	 * How many health checks failed in a row, only used from the health checker thread
+	 */
+	private int failedHealthChecks = 0;
+
+	/**
+	 * Runs the async methods, created when first used
+	 */
+	private ThreadPoolExecutor executor;
 
 	/**
 	 * The last credentials from the connect function, or null if never called
@@ -60,14 +123,9 @@ public class SimpleDatabase {
 	private final StrictMap<String, String> sqlVariables = new StrictMap<>();
 
 	/**
-	 * Indicates that {@link #batchUpdate(List)} is ongoing
+	 * When we last logged progress of {@link #batchUpdate(List)}
 	 */
-	private boolean batchUpdateGoingOn = false;
-
-	/**
-	 * Optional Hikari data source (you plugin needs to include com.zaxxer.HikariCP library in its plugin.yml (MC 1.16+ required)
-	 */
-	private Object hikariDataSource;
+	private volatile long lastBatchProgressLog = 0;
 
 	// --------------------------------------------------------------------
 	// Connecting
@@ -140,76 +198,26 @@ public class SimpleDatabase {
 	public final void connect(final String url, final String user, final String password, final String table) {
 
 		// Close any open connection
-		this.close();
+		this.closeConnections();
 
 		try {
+			this.statementCache = new StatementCache(this.getStatementCacheSize());
+			this.connectionProvider = this.createConnectionProvider(url, user, password);
 
-			// Avoid using imports so that Foundation users don't have to include Hikari, you can
-			// optionally load the library using "libraries" and "legacy-libraries" feature in plugin.yml:
-			//
-			// libraries:
-			// - com.zaxxer:HikariCP:5.0.1
-			// legacy-libraries:
-			//  - org.slf4j:slf4j-simple:1.7.36
-			//  - org.slf4j:slf4j-api:1.7.36
-			//  - com.zaxxer:HikariCP:4.0.3
-			//
-			if (ReflectionUtil.isClassAvailable("com.zaxxer.hikari.HikariConfig")) {
-
-				final Object hikariConfig = ReflectionUtil.instantiate("com.zaxxer.hikari.HikariConfig");
+			// Borrow a connection right away to fail early on wrong credentials
+			try (Connection connection = this.connectionProvider.getConnection()) {
+				Debugger.debug("mysql", "Connected to " + connection.getMetaData().getDatabaseProductName() + " using " + this.connectionProvider.getClass().getSimpleName());
 
-				if (url.startsWith("jdbc:mysql://"))
-					ReflectionUtil.invoke("setDriverClassName", hikariConfig, "com.mysql.cj.jdbc.Driver");
-
-				else if (url.startsWith("jdbc:mariadb://"))
-					ReflectionUtil.invoke("setDriverClassName", hikariConfig, "org.mariadb.jdbc.Driver");
-
-				else
-					throw new FoException("Unknown database driver, expected jdbc:mysql or jdbc:mariadb, got: " + url);
-
-				ReflectionUtil.invoke("setJdbcUrl", hikariConfig, url);
-				ReflectionUtil.invoke("setUsername", hikariConfig, user);
-				ReflectionUtil.invoke("setPassword", hikariConfig, password);
-
-				final Constructor<?> dataSourceConst = ReflectionUtil.getConstructor("com.zaxxer.hikari.HikariDataSource", hikariConfig.getClass());
-				final Object hikariSource = ReflectionUtil.instantiate(dataSourceConst, hikariConfig);
-
-				this.hikariDataSource = hikariSource;
-
-				final Method getConnection = hikariSource.getClass().getDeclaredMethod("getConnection");
-
-				try {
-					this.connection = ReflectionUtil.invoke(getConnection, hikariSource);
-
-				} catch (final Throwable t) {
-					Common.warning("Could not get HikariCP connection, please report this with the information below to github.com/kangarko/foundation");
-					Common.warning("Method: " + getConnection);
-					Common.warning("Arguments: " + Common.join(getConnection.getParameters()));
-
-					t.printStackTrace();
-				}
-			}
-
-			/*
-			 * Check for JDBC Drivers (MariaDB, MySQL or Legacy MySQL)
-			 */
-			else {
-				if (url.startsWith("jdbc:mariadb://") && ReflectionUtil.isClassAvailable("org.mariadb.jdbc.Driver"))
-					Class.forName("org.mariadb.jdbc.Driver");
-
-				else if (url.startsWith("jdbc:mysql://") && ReflectionUtil.isClassAvailable("com.mysql.cj.jdbc.Driver"))
-					Class.forName("com.mysql.cj.jdbc.Driver");
-
-				else {
-					Common.warning("Your database driver is outdated, switching to MySQL legacy JDBC Driver. If you encounter issues, consider updating your database or switching to MariaDB. You can safely ignore this warning");
-
-					Class.forName("com.mysql.jdbc.Driver");
-				}
+			} catch (final SQLException ex) {
+				this.closeConnections();
 
-				this.connection = DriverManager.getConnection(url, user, password);
+				throw ex;
 			}
 
 			this.lastCredentials = new LastCredentials(url, user, password, table);
+			this.healthy = true;
+			this.startHealthChecker();
+
 			this.onConnected();
 
 		} catch (final Exception ex) {
@@ -236,12 +244,75 @@ public class SimpleDatabase {
 	}
 
 	/**
-	 * Attempts to connect using last known credentials. Fails gracefully if those are not provided
-	 * i.e. connect function was never called
+	 * Create the provider we borrow connections from. By default we use HikariCP
+	 * if your plugin loads it, or a {@link SimpleConnectionPool} otherwise
+	 * <p>
+	 * Override this to use your own pool
+	 *
+	 * @param url
+	 * @param user
+	 * @param password
+	 * @return
+	 * @throws Exception
+	 */
+	protected ConnectionProvider createConnectionProvider(final String url, final String user, final String password) throws Exception {
+		if (HikariConnectionProvider.isAvailable())
+			return new HikariConnectionProvider(url, user, password, this.getPoolSize());
+
+		/*
+		 * Check for JDBC Drivers (MariaDB, MySQL or Legacy MySQL)
+		 */
+		if (url.startsWith("jdbc:mariadb://") && ReflectionUtil.isClassAvailable("org.mariadb.jdbc.Driver"))
+			Class.forName("org.mariadb.jdbc.Driver");
+
+		else if (url.startsWith("jdbc:mysql://") && ReflectionUtil.isClassAvailable("com.mysql.cj.jdbc.Driver"))
+			Class.forName("com.mysql.cj.jdbc.Driver");
+
+		else {
+			Common.warning("Your database driver is outdated, switching to MySQL legacy JDBC Driver. If you encounter issues, consider updating your database or switching to MariaDB. You can safely ignore this warning");
+
+			Class.forName("com.mysql.jdbc.Driver");
+		}
+
+		return new SimpleConnectionPool(url, user, password, this.getPoolSize());
+	}
+
+	/**
+	 * Return how many connections may be open at once
+	 *
+	 * @return
 	 */
-	private final void connectUsingLastCredentials() {
-		if (lastCredentials != null)
-			connect(lastCredentials.url, lastCredentials.user, lastCredentials.password, lastCredentials.table);
+	protected int getPoolSize() {
+		return 10;
+	}
+
+	/**
+	 * Return how many prepared statements to keep open for each connection
+	 * so that queries with parameters are not parsed again each time
+	 *
+	 * @return
+	 */
+	protected int getStatementCacheSize() {
+		return 50;
+	}
+
+	/**
+	 * Return how often to check if the database is reachable, in seconds
+	 *
+	 * @return
+	 */
+	protected int getHealthCheckIntervalSeconds() {
+		return 10;
+	}
+
+	/**
+	 * Return the longest time to wait between attempts to reach the database
+	 * while it is down, in seconds. We start with 1 second and double it each time.
+	 *
+	 * @return
+	 */
+	protected int getMaxReconnectDelaySeconds() {
+		return 60;
 	}
 
 	/**
@@ -255,19 +326,67 @@ public class SimpleDatabase {
 	// --------------------------------------------------------------------
 
 	/**
-	 * Attempts to close the connection, if not null
+	 * Attempts to close all connections, if connected, waiting
+	 * for queued async tasks to finish first
+	 * <p>
+	 * Call this from your plugin's onPluginStop so nothing is lost
 	 */
 	public final void close() {
+		this.shutdownExecutor();
+
 		try {
-			if (connection != null)
-				connection.close();
+			this.onClose();
 
-			if (hikariDataSource != null)
-				ReflectionUtil.invoke("close", hikariDataSource);
+		} catch (final Throwable t) {
+			Common.error(t, "Error before closing MySQL connection!");
+		}
 
-		} catch (final SQLException e) {
-			Common.error(e, "Error closing MySQL connection!");
+		this.closeConnections();
+	}
+
+	/**
+	 * Called when {@link #close()} is called after async tasks finished,
+	 * connections can still be used here if connected
+	 */
+	protected void onClose() {
+	}
+
+	/*
+	 * Close the provider and the statement cache
+	 */
+	private void closeConnections() {
+		this.stopHealthChecker();
+
+		final ConnectionProvider provider = this.connectionProvider;
+		final StatementCache cache = this.statementCache;
+
+		synchronized (this) {
+			if (this.sharedConnection != null)
+				try {
+					this.sharedConnection.close();
+
+				} catch (final SQLException ex) {
+					// Connection is broken, the pool closes it instead of reusing it
+				}
+
+			this.sharedConnection = null;
+		}
+
+		if (cache != null) {
+			this.statementCache = null;
+
+			cache.clear();
 		}
+
+		if (provider != null)
+			try {
+				this.connectionProvider = null;
+
+				provider.close();
+
+			} catch (final Throwable t) {
+				Common.error(t, "Error closing MySQL connection!");
+			}
 	}
 
 	// --------------------------------------------------------------------
@@ -290,11 +409,7 @@ public class SimpleDatabase {
 	 * @param columsAndValues
 	 */
 	protected final void insert(String table, @NonNull SerializedMap columsAndValues) {
-		final String columns = Common.join(columsAndValues.keySet());
-		final String values = Common.join(columsAndValues.values(), ", ", value -> value == null || value.equals("NULL") ? "NULL" : "'" + SerializeUtil.serialize(value).toString() + "'");
-		final String duplicateUpdate = Common.join(columsAndValues.entrySet(), ", ", entry -> entry.getKey() + "=VALUES(" + entry.getKey() + ")");
-
-		update("INSERT INTO " + replaceVariables(table) + " (" + columns + ") VALUES (" + values + ") ON DUPLICATE KEY UPDATE " + duplicateUpdate + ";");
+		update(this.createInsertSql(table, columsAndValues), this.toInsertValues(columsAndValues));
 	}
 
 	/**
@@ -308,29 +423,54 @@ public class SimpleDatabase {
 
 	/**
 	 * Insert the batch map into the database
+	 * <p>
+	 * Maps with the same columns are sent together using bound parameters,
+	 * see {@link #batchUpdate(String, List)}
 	 *
 	 * @param table
 	 * @param maps
 	 */
 	protected final void insertBatch(String table, @NonNull List<SerializedMap> maps) {
-		final List<String> sqls = new ArrayList<>();
+		if (maps.isEmpty())
+			return;
+
+		// Group rows by their columns so that each group shares one statement
+		final Map<String, List<Object[]>> rowsByColumns = new LinkedHashMap<>();
+		final Map<String, SerializedMap> firstRows = new LinkedHashMap<>();
 
 		for (final SerializedMap map : maps) {
 			final String columns = Common.join(map.keySet());
-			final String values = Common.join(map.values(), ", ", this::parseValue);
-			final String duplicateUpdate = Common.join(map.entrySet(), ", ", entry -> entry.getKey() + "=VALUES(" + entry.getKey() + ")");
 
-			sqls.add("INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ") ON DUPLICATE KEY UPDATE " + duplicateUpdate + ";");
+			firstRows.putIfAbsent(columns, map);
+			rowsByColumns.computeIfAbsent(columns, key -> new ArrayList<>()).add(this.toInsertValues(map));
 		}
 
-		this.batchUpdate(sqls);
+		for (final Entry<String, List<Object[]>> entry : rowsByColumns.entrySet())
+			this.batchUpdate(this.createInsertSql(table, firstRows.get(entry.getKey())), entry.getValue());
 	}
 
 	/*
-	 * A helper method to insert compatible value to db
+	 * Create the insert or update sql with placeholders for the columns of the given map
 	 */
-	private final String parseValue(Object value) {
-		return value == null || value.equals("NULL") ? "NULL" : "'" + SerializeUtil.serialize(value).toString() + "'";
+	private String createInsertSql(String table, SerializedMap columsAndValues) {
+		final String columns = Common.join(columsAndValues.keySet());
+		final String placeholders = Common.join(columsAndValues.keySet(), ", ", column -> "?");
+		final String duplicateUpdate = Common.join(columsAndValues.keySet(), ", ", column -> column + "=VALUES(" + column + ")");
+
+		return "INSERT INTO " + table + " (" + columns + ") VALUES (" + placeholders + ") ON DUPLICATE KEY UPDATE " + duplicateUpdate + ";";
+	}
+
+	/*
+	 * Return values of the map to bind to the statement from createInsertSql, "NULL" is stored as null
+	 */
+	private Object[] toInsertValues(SerializedMap columsAndValues) {
+		final Object[] values = new Object[columsAndValues.size()];
+		int index = 0;
+
+		for (final Object value : columsAndValues.values())
+			values[index++] = value == null || value.equals("NULL") ? null : value;
+
+		return values;
 	}
 
 	/**
@@ -341,50 +481,116 @@ public class SimpleDatabase {
 	 * @param sql
 	 */
 	protected final void update(String sql) {
-		checkEstablished();
+		checkAvailable();
 
-		if (!isConnected())
-			connectUsingLastCredentials();
+		sql = replaceVariables(sql);
+		Valid.checkBoolean(!sql.contains("{table}"), "Table not set! Either use connect() method that specifies it or call addVariable(table, 'yourtablename') in your constructor!");
+
+		Debugger.debug("mysql", "Updating MySQL with: " + sql);
+
+		try (Connection connection = this.borrowConnection(); Statement statement = connection.createStatement()) {
+			statement.executeUpdate(sql);
+
+		} catch (final SQLException e) {
+			handleError(e, "Error on updating MySQL with: " + sql);
+		}
+	}
+
+	/**
+	 * Attempts to execute a new update query replacing each ? in the sql
+	 * with the given parameters in order
+	 * <p>
+	 * Parameters are sent separately from the sql so they need no quoting or escaping,
+	 * and the statement is cached so it is only parsed once per connection.
+	 * Numbers, booleans, strings and byte arrays are sent as they are, other values are serialized.
+	 * <p>
+	 * Make sure you called connect() first otherwise an error will be thrown
+	 *
+	 * @param sql
+	 * @param parameters
+	 * @return how many rows were changed
+	 */
+	protected final int update(String sql, Object... parameters) {
+		checkAvailable();
 
 		sql = replaceVariables(sql);
 		Valid.checkBoolean(!sql.contains("{table}"), "Table not set! Either use connect() method that specifies it or call addVariable(table, 'yourtablename') in your constructor!");
 
 		Debugger.debug("mysql", "Updating MySQL with: " + sql);
 
-		try {
-			final Statement statement = connection.createStatement();
+		try (Connection connection = this.borrowConnection()) {
+			final PreparedStatement statement = this.prepareCached(connection, sql);
 
-			statement.executeUpdate(sql);
-			statement.close();
+			bindParameters(statement, parameters);
+			return statement.executeUpdate();
 
 		} catch (final SQLException e) {
 			handleError(e, "Error on updating MySQL with: " + sql);
 		}
+
+		return 0;
 	}
 
 	/**
 	 * Attempts to execute a new query
 	 * <p>
-	 * Make sure you called connect() first otherwise an error will be thrown
+	 * Make sure you called connect() first otherwise an error will be thrown.
+	 * The results are read into memory so the connection is returned to the pool
+	 * right away, closing the result set is not required.
 	 *
 	 * @param sql
 	 * @return
 	 */
 	protected final ResultSet query(String sql) {
-		checkEstablished();
+		checkAvailable();
+
+		sql = replaceVariables(sql);
+
+		Debugger.debug("mysql", "Querying MySQL with: " + sql);
+
+		try (Connection connection = this.borrowConnection(); Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery(sql)) {
+			final CachedRowSet rowSet = getRowSetFactory().createCachedRowSet();
+
+			rowSet.populate(resultSet);
+			return rowSet;
+
+		} catch (final SQLException ex) {
+			handleError(ex, "Error on querying MySQL with: " + sql);
+		}
 
-		if (!isConnected())
-			connectUsingLastCredentials();
+		return null;
+	}
+
+	/**
+	 * Attempts to execute a new query replacing each ? in the sql with
+	 * the given parameters in order, see {@link #update(String, Object...)}
+	 * <p>
+	 * Make sure you called connect() first otherwise an error will be thrown.
+	 * The results are read into memory so the connection is returned to the pool
+	 * right away, closing the result set is not required.
+	 *
+	 * @param sql
+	 * @param parameters
+	 * @return
+	 */
+	protected final ResultSet query(String sql, Object... parameters) {
+		checkAvailable();
 
 		sql = replaceVariables(sql);
 
 		Debugger.debug("mysql", "Querying MySQL with: " + sql);
 
-		try {
-			final Statement statement = connection.createStatement();
-			final ResultSet resultSet = statement.executeQuery(sql);
+		try (Connection connection = this.borrowConnection()) {
+			final PreparedStatement statement = this.prepareCached(connection, sql);
+
+			bindParameters(statement, parameters);
 
-			return resultSet;
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final CachedRowSet rowSet = getRowSetFactory().createCachedRowSet();
+
+				rowSet.populate(resultSet);
+				return rowSet;
+			}
 
 		} catch (final SQLException ex) {
 			handleError(ex, "Error on querying MySQL with: " + sql);
@@ -394,123 +600,507 @@ public class SimpleDatabase {
 	}
 
 	/**
-	 * Executes a massive batch update
+	 * Attempts to execute a new query replacing each ? in the sql with the given parameters,
+	 * see {@link #update(String, Object...)}, and return each row mapped by the mapper
+	 * <p>
+	 * All rows are read into the list, use {@link #stream(String, int, RowMapper, Consumer, Object...)}
+	 * for queries returning too many rows to hold in memory.
+	 *
+	 * @param <V>
+	 * @param sql
+	 * @param mapper
+	 * @param parameters
+	 * @return the mapped rows, or an empty list if the query failed
+	 */
+	protected final <V> List<V> query(String sql, @NonNull RowMapper<V> mapper, Object... parameters) {
+		final List<V> rows = new ArrayList<>();
+
+		this.stream(sql, 0, mapper, rows::add, parameters);
+		return rows;
+	}
+
+	/**
+	 * Attempts to execute a new query replacing each ? in the sql with the given parameters,
+	 * see {@link #update(String, Object...)}, passing each row mapped by the mapper to the
+	 * consumer as it is read, holding only up to the fetch size of rows in memory
+	 * <p>
+	 * MariaDB drivers fetch the given amount of rows at a time. MySQL Connector/J
+	 * only does so with useCursorFetch=true in the connection url, otherwise pass
+	 * {@link Integer#MIN_VALUE} to read rows one by one. The connection is
+	 * held until all rows are read so keep the consumer fast.
+	 *
+	 * @param <V>
+	 * @param sql
+	 * @param fetchSize how many rows to fetch at a time, 0 to let the driver decide
+	 * @param mapper
+	 * @param consumer
+	 * @param parameters
+	 * @return how many rows were read
+	 */
+	protected final <V> int stream(String sql, int fetchSize, @NonNull RowMapper<V> mapper, @NonNull Consumer<V> consumer, Object... parameters) {
+		checkAvailable();
+
+		sql = replaceVariables(sql);
+
+		Debugger.debug("mysql", "Streaming MySQL query: " + sql);
+
+		int count = 0;
+
+		try (Connection connection = this.borrowConnection(); PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			statement.setFetchSize(fetchSize);
+			bindParameters(statement, parameters);
+
+			try (ResultSet resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					consumer.accept(mapper.map(resultSet));
+
+					count++;
+				}
+			}
+
+		} catch (final SQLException ex) {
+			handleError(ex, "Error on querying MySQL with: " + sql);
+		}
+
+		return count;
+	}
+
+	/*
+	 * Return a cached prepared statement for the given borrowed connection, do not close it
+	 */
+	private PreparedStatement prepareCached(Connection connection, String sql) throws SQLException {
+		final StatementCache cache = this.statementCache;
+
+		if (cache == null)
+			throw new SQLException("Connection was closed");
+
+		return cache.prepare(connection, sql);
+	}
+
+	/*
+	 * Bind the parameters to the statement in order
+	 */
+	private static void bindParameters(PreparedStatement statement, Object... parameters) throws SQLException {
+		for (int i = 0; i < parameters.length; i++) {
+			final Object parameter = parameters[i];
+
+			if (parameter == null)
+				statement.setNull(i + 1, Types.NULL);
+
+			else if (parameter instanceof Number || parameter instanceof Boolean || parameter instanceof String)
+				statement.setObject(i + 1, parameter);
+
+			else if (parameter instanceof byte[])
+				statement.setBytes(i + 1, (byte[]) parameter);
+
+			else
+				statement.setString(i + 1, SerializeUtil.serialize(parameter).toString());
+		}
+	}
+
+	/**
+	 * Executes a massive batch update, committing every {@link #getBatchChunkSize()}
+	 * statements and reporting progress to {@link #onBatchProgress(int, int)}
+	 * <p>
+	 * A chunk that fails is retried once on a new connection, if it fails again
+	 * its statements are written to sql-error.log and the remaining chunks continue
 	 *
 	 * @param sqls
 	 */
 	protected final void batchUpdate(@NonNull List<String> sqls) {
-		if (sqls.size() == 0)
-			return;
+		this.executeInChunks(sqls.size(), (connection, from, to) -> {
+			try (Statement statement = connection.createStatement()) {
+				for (final String sql : sqls.subList(from, to))
+					statement.addBatch(replaceVariables(sql));
 
-		try {
-			final Statement batchStatement = getConnection().createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-			final int processedCount = sqls.size();
+				statement.executeBatch();
+			}
+
+		}, (from, to) -> {
+			final List<String> lines = new ArrayList<>();
+
+			for (final String sql : sqls.subList(from, to))
+				lines.add(replaceVariables(sql));
+
+			return lines;
+		});
+	}
+
+	/**
+	 * Executes the given sql once for each of the given parameter rows, replacing each ? in
+	 * the sql with the row's values in order, see {@link #update(String, Object...)}
+	 * <p>
+	 * Rows are sent in chunks the same way as {@link #batchUpdate(List)}
+	 *
+	 * @param sql
+	 * @param parameterRows
+	 */
+	protected final void batchUpdate(String sql, @NonNull List<Object[]> parameterRows) {
+		final String replacedSql = replaceVariables(sql);
 
-			// Prevent automatically sending db instructions
-			getConnection().setAutoCommit(false);
+		this.executeInChunks(parameterRows.size(), (connection, from, to) -> {
+			final PreparedStatement statement = this.prepareCached(connection, replacedSql);
 
-			for (final String sql : sqls)
-				batchStatement.addBatch(replaceVariables(sql));
+			for (final Object[] parameters : parameterRows.subList(from, to)) {
+				bindParameters(statement, parameters);
 
-			if (processedCount > 10_000)
-				Common.log("Updating your database (" + processedCount + " entries)... PLEASE BE PATIENT THIS WILL TAKE "
-						+ (processedCount > 50_000 ? "10-20 MINUTES" : "5-10 MINUTES") + " - If server will print a crash report, ignore it, update will proceed.");
+				statement.addBatch();
+			}
 
-			// Set the flag to start time notifications timer
-			batchUpdateGoingOn = true;
+			statement.executeBatch();
 
-			// Notify console that progress still is being made
-			new Timer().scheduleAtFixedRate(new TimerTask() {
+		}, (from, to) -> {
+			final List<String> lines = new ArrayList<>();
 
-				@Override
-				public void run() {
-					if (batchUpdateGoingOn)
-						Common.log("Still executing, " + RandomUtil.nextItem("keep calm", "stand by", "watch the show", "check your db", "drink water", "call your friend") + " and DO NOT SHUTDOWN YOUR SERVER.");
-					else
-						cancel();
-				}
-			}, 1000 * 30, 1000 * 30);
+			lines.add(replacedSql);
 
-			// Execute
-			batchStatement.executeBatch();
+			for (final Object[] parameters : parameterRows.subList(from, to))
+				lines.add(" " + Common.join(parameters, ", ", parameter -> parameter == null ? "NULL" : "'" + SerializeUtil.serialize(parameter) + "'"));
 
-			// This will block the thread
-			getConnection().commit();
+			return lines;
+		});
+	}
 
-			//Common.log("Updated " + processedCount + " database entries.");
+	/*
+	 * Run the batch in chunks each in its own transaction on one borrowed connection
+	 */
+	private void executeInChunks(final int total, final BatchChunk chunk, final BiFunction<Integer, Integer, List<String>> describer) {
+		if (total == 0)
+			return;
 
-		} catch (final Throwable t) {
-			final List<String> errorLog = new ArrayList<>();
+		checkAvailable();
 
-			errorLog.add(Common.consoleLine());
-			errorLog.add(" [" + TimeUtil.getFormattedDateShort() + "] Failed to save batch sql, please contact the plugin author with this file content: " + t);
-			errorLog.add(Common.consoleLine());
+		final int chunkSize = Math.max(1, this.getBatchChunkSize());
+		int failed = 0;
 
-			for (final String statement : sqls)
-				errorLog.add(replaceVariables(statement));
+		this.onBatchProgress(0, total);
 
-			FileUtil.write("sql-error.log", sqls);
+		for (int from = 0; from < total; from += chunkSize) {
+			final int to = Math.min(total, from + chunkSize);
 
-			t.printStackTrace();
+			if (!this.executeChunk(chunk, from, to)) {
+				final List<String> errorLog = new ArrayList<>();
+
+				errorLog.add(Common.consoleLine());
+				errorLog.add(" [" + TimeUtil.getFormattedDateShort() + "] Failed to save statements " + (from + 1) + "-" + to + " of " + total + " from a batch, please contact the plugin author with this file content:");
+				errorLog.add(Common.consoleLine());
+				errorLog.addAll(describer.apply(from, to));
+
+				FileUtil.write("sql-error.log", errorLog);
+				failed += to - from;
+			}
+
+			this.onBatchProgress(to, total);
+		}
+
+		if (failed > 0)
+			Common.log("Failed to save " + failed + " of " + total + " database entries, see sql-error.log");
+	}
+
+	/*
+	 * Run and commit one chunk, retrying once on a new connection, returning false if both failed
+	 */
+	private boolean executeChunk(final BatchChunk chunk, final int from, final int to) {
+		for (int attempt = 1;; attempt++) {
+			Connection connection = null;
 
-		} finally {
 			try {
-				getConnection().setAutoCommit(true);
+				connection = this.borrowConnection();
+				connection.setAutoCommit(false);
+
+				chunk.execute(connection, from, to);
+				connection.commit();
+
+				return true;
 
 			} catch (final SQLException ex) {
-				ex.printStackTrace();
+				if (connection != null)
+					try {
+						connection.rollback();
+
+					} catch (final SQLException rollbackEx) {
+						// Connection is broken, closing it below returns it to the pool
+					}
+
+				checkConnectionLost(ex);
+
+				if (attempt >= 2) {
+					Common.error(ex, "Failed to save statements " + (from + 1) + "-" + to + " from a database batch", "Error: %error");
+
+					return false;
+				}
+
+			} finally {
+				if (connection != null)
+					try {
+						connection.setAutoCommit(true);
+
+					} catch (final SQLException ex) {
+						// Connection is broken, the pool resets auto-commit when it is returned anyway
+
+					} finally {
+						try {
+							connection.close();
+
+						} catch (final SQLException ex) {
+							Debugger.debug("mysql", "Failed to return connection to the pool: " + ex);
+						}
+					}
 			}
+		}
+	}
+
+	/**
+	 * Return how many statements of a batch to send and commit together
+	 *
+	 * @return
+	 */
+	protected int getBatchChunkSize() {
+		return 1_000;
+	}
 
-			// Even in case of failure, cancel
-			batchUpdateGoingOn = false;
+	/**
+	 * Called before a batch starts and after each of its chunks is committed.
+	 * By default we log progress every 30 seconds for batches of over 10 000 statements.
+	 *
+	 * @param done how many statements were processed, including failed ones
+	 * @param total
+	 */
+	protected void onBatchProgress(int done, int total) {
+		if (total < 10_000)
+			return;
+
+		final long now = System.currentTimeMillis();
+
+		if (done == 0) {
+			Common.log("Updating your database (" + total + " entries)... PLEASE BE PATIENT and DO NOT SHUTDOWN YOUR SERVER.");
+
+			this.lastBatchProgressLog = now;
+
+		} else if (done == total)
+			Common.log("Updated " + total + " database entries.");
+
+		else if (now - this.lastBatchProgressLog >= 30_000) {
+			Common.log("Still executing, " + done + "/" + total + " entries done, " + RandomUtil.nextItem("keep calm", "stand by", "watch the show", "check your db", "drink water", "call your friend") + ".");
+
+			this.lastBatchProgressLog = now;
 		}
 	}
 
 	/**
-	 * Attempts to return a prepared statement
+	 * Return a connection kept open until the database closes, you must not close it
+	 * <p>
+	 * This holds one connection from the pool for as long as the database is open.
+	 * Use {@link #borrowConnection()} instead and close the connection when done.
+	 *
+	 * @return
+	 * @throws SQLException
+	 * @deprecated connections are pooled now, use {@link #borrowConnection()}
+	 */
+	@Deprecated
+	protected synchronized Connection getConnection() throws SQLException {
+		if (this.sharedConnection == null || this.sharedConnection.isClosed())
+			this.sharedConnection = this.borrowConnection();
+
+		return this.sharedConnection;
+	}
+
+	/**
+	 * Borrow a connection from the pool, you must close it to return it
+	 * back, ideally using try-with-resources
 	 * <p>
 	 * Make sure you called connect() first otherwise an error will be thrown
 	 *
-	 * @param sql
 	 * @return
 	 * @throws SQLException
 	 */
-	protected final java.sql.PreparedStatement prepareStatement(String sql) throws SQLException {
-		checkEstablished();
+	protected final Connection borrowConnection() throws SQLException {
+		final ConnectionProvider provider = this.connectionProvider;
+		Valid.checkBoolean(provider != null, "Connection was never established");
 
-		if (!isConnected())
-			connectUsingLastCredentials();
+		return provider.getConnection();
+	}
+
+	/**
+	 * Attempts to return a prepared statement
+	 * <p>
+	 * Make sure you called connect() first otherwise an error will be thrown.
+	 * The statement holds a connection from the pool until you close it.
+	 *
+	 * @param sql
+	 * @return
+	 * @throws SQLException
+	 */
+	protected final PreparedStatement prepareStatement(String sql) throws SQLException {
+		checkAvailable();
 
 		sql = replaceVariables(sql);
 
 		Debugger.debug("mysql", "Preparing statement: " + sql);
 
-		return connection.prepareStatement(sql);
+		final Connection connection = this.borrowConnection();
+
+		try {
+			final PreparedStatement statement = connection.prepareStatement(sql);
+
+			// Return the connection to the pool when the statement is closed
+			return (PreparedStatement) Proxy.newProxyInstance(SimpleDatabase.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, (proxy, method, args) -> {
+				try {
+					if ("close".equals(method.getName()) && method.getParameterCount() == 0)
+						try {
+							statement.close();
+
+						} finally {
+							connection.close();
+						}
+
+					else if ("getConnection".equals(method.getName()) && method.getParameterCount() == 0)
+						return connection;
+
+					else
+						return method.invoke(statement, args);
+
+				} catch (final InvocationTargetException ex) {
+					throw ex.getCause();
+				}
+
+				return null;
+			});
+
+		} catch (final SQLException | RuntimeException ex) {
+			connection.close();
+
+			throw ex;
+		}
 	}
 
 	/**
-	 * Is the connection established, open and valid?
-	 * Performs a blocking ping request to the database
+	 * Is the connection established and did the database answer the last
+	 * health check? This does not block, see {@link #getHealthCheckIntervalSeconds()}
 	 *
-	 * @return whether the connection driver was set
+	 * @return
 	 */
 	protected final boolean isConnected() {
-		if (!isLoaded())
-			return false;
+		return isLoaded() && this.healthy;
+	}
+
+	/*
+	 * Start checking the database in the background
+	 */
+	private synchronized void startHealthChecker() {
+		this.failedHealthChecks = 0;
+		this.healthChecker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(this.getClass().getSimpleName() + " Health Check %d"));
+
+		this.scheduleHealthCheck(TimeUnit.SECONDS.toMillis(this.getHealthCheckIntervalSeconds()));
+	}
+
+	/*
+	 * Stop checking the database
+	 */
+	private synchronized void stopHealthChecker() {
+		if (this.healthChecker != null) {
+			this.healthChecker.shutdownNow();
+
+			this.healthChecker = null;
+			this.nextHealthCheck = null;
+		}
+
+		this.healthy = false;
+	}
+
+	/*
+	 * Run the next health check after the given delay, replacing the one scheduled
+	 */
+	private synchronized void scheduleHealthCheck(long delayMillis) {
+		if (this.healthChecker == null)
+			return;
+
+		if (this.nextHealthCheck != null)
+			this.nextHealthCheck.cancel(false);
 
 		try {
-			return !connection.isClosed() && connection.isValid(0);
+			this.nextHealthCheck = this.healthChecker.schedule(this::checkHealth, delayMillis, TimeUnit.MILLISECONDS);
+
+		} catch (final RejectedExecutionException ex) {
+			// Shutting down
+		}
+	}
+
+	/*
+	 * Check if the database is reachable and schedule the next check, retrying
+	 * with doubling delays while it is down
+	 */
+	private void checkHealth() {
+		final ConnectionProvider provider = this.connectionProvider;
+
+		if (provider == null)
+			return;
+
+		boolean valid;
+
+		try (Connection connection = provider.getConnection()) {
+			valid = connection.isValid(5);
 
 		} catch (final SQLException ex) {
-			return false;
+			valid = false;
+		}
+
+		if (valid) {
+			if (!this.healthy)
+				Common.log("Connection to MySQL database has been restored after " + this.failedHealthChecks + " attempt(s).");
+
+			this.healthy = true;
+			this.failedHealthChecks = 0;
+
+			this.scheduleHealthCheck(TimeUnit.SECONDS.toMillis(this.getHealthCheckIntervalSeconds()));
+
+		} else {
+			if (this.healthy)
+				Common.warning("Lost connection to MySQL database, queries will fail right away until it is back. Reconnecting in the background...");
+
+			this.healthy = false;
+
+			final long delay = Math.min(TimeUnit.SECONDS.toMillis(this.getMaxReconnectDelaySeconds()), 1000L << Math.min(this.failedHealthChecks, 16));
+
+			this.failedHealthChecks++;
+			this.scheduleHealthCheck(delay);
 		}
 	}
 
+	/*
+	 * Mark the database down and check it right away if the error means the connection was lost
+	 */
+	private void checkConnectionLost(Throwable t) {
+		if (!(t instanceof SQLException) || !this.healthy)
+			return;
+
+		final SQLException ex = (SQLException) t;
+		final String state = Common.getOrEmpty(ex.getSQLState());
+
+		if (ex instanceof SQLTransientConnectionException || ex instanceof SQLNonTransientConnectionException || state.startsWith("08")) {
+			this.healthy = false;
+
+			this.scheduleHealthCheck(0);
+		}
+	}
+
+	/*
+	 * Return the factory for result sets read into memory, created once since looking it up is slow
+	 */
+	private static RowSetFactory getRowSetFactory() throws SQLException {
+		if (rowSetFactory == null)
+			rowSetFactory = RowSetProvider.newFactory();
+
+		return rowSetFactory;
+	}
+
 	/*
 	 * Checks if there's a collation-related error and prints warning message for the user to
 	 * update his database.
 	 */
 	private void handleError(Throwable t, String fallbackMessage) {
+		checkConnectionLost(t);
+
 		if (t.toString().contains("Unknown collation")) {
 			Common.log("You need to update your MySQL provider driver. We switched to support unicode using 4 bits length because the previous system only supported 3 bits.");
 			Common.log("Some characters such as smiley or Chinese are stored in 4 bits so they would crash the 3-bit database leading to more problems. Most hosting providers have now widely adopted the utf8mb4_unicode_520_ci encoding you seem lacking. Disable MySQL connection or update your driver to fix this.");
@@ -525,6 +1115,144 @@ public class SimpleDatabase {
 			Common.throwError(t, fallbackMessage);
 	}
 
+	// --------------------------------------------------------------------
+	// Async
+	// --------------------------------------------------------------------
+
+	/**
+	 * Runs {@link #query(String, Object...)} on the database executor
+	 *
+	 * @param sql
+	 * @param parameters
+	 * @return
+	 */
+	protected final CompletableFuture<ResultSet> queryAsync(String sql, Object... parameters) {
+		return this.supplyAsync(() -> this.query(sql, parameters));
+	}
+
+	/**
+	 * Runs {@link #update(String, Object...)} on the database executor
+	 *
+	 * @param sql
+	 * @param parameters
+	 * @return
+	 */
+	protected final CompletableFuture<Void> updateAsync(String sql, Object... parameters) {
+		return this.runAsync(() -> this.update(sql, parameters));
+	}
+
+	/**
+	 * Runs the given task on the database executor, completing the future
+	 * with its result or the error it threw
+	 * <p>
+	 * The future is failed right away if too many tasks are queued already,
+	 * see {@link #getAsyncQueueCapacity()}. Callbacks you chain without an
+	 * executor run on the database thread, do not block in them.
+	 *
+	 * @param <V>
+	 * @param task
+	 * @return
+	 */
+	protected final <V> CompletableFuture<V> supplyAsync(@NonNull Supplier<V> task) {
+		try {
+			return CompletableFuture.supplyAsync(task, this.getExecutor());
+
+		} catch (final RejectedExecutionException ex) {
+			final CompletableFuture<V> future = new CompletableFuture<>();
+
+			future.completeExceptionally(ex);
+			return future;
+		}
+	}
+
+	/**
+	 * Runs the given task on the database executor, see {@link #supplyAsync(Supplier)}
+	 *
+	 * @param task
+	 * @return
+	 */
+	protected final CompletableFuture<Void> runAsync(@NonNull Runnable task) {
+		return this.supplyAsync(() -> {
+			task.run();
+
+			return null;
+		});
+	}
+
+	/**
+	 * Return how many threads run async tasks at once, by default
+	 * as many as there are connections in the pool
+	 *
+	 * @return
+	 */
+	protected int getAsyncThreads() {
+		return this.getPoolSize();
+	}
+
+	/**
+	 * Return how many async tasks may wait for a thread before new ones are rejected
+	 *
+	 * @return
+	 */
+	protected int getAsyncQueueCapacity() {
+		return 10_000;
+	}
+
+	/*
+	 * Return the executor running async tasks, creating it if needed
+	 */
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (this.executor == null) {
+			final int threads = Math.max(1, this.getAsyncThreads());
+
+			this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(Math.max(1, this.getAsyncQueueCapacity())), new NamedThreadFactory(this.getExecutorThreadName() + " %d"));
+
+			this.executor.allowCoreThreadTimeOut(true);
+		}
+
+		return this.executor;
+	}
+
+	/*
+	 * Stop accepting async tasks and wait up to 30 seconds for queued ones to finish
+	 */
+	private void shutdownExecutor() {
+		final ThreadPoolExecutor executor;
+
+		synchronized (this) {
+			executor = this.executor;
+			this.executor = null;
+		}
+
+		if (executor == null)
+			return;
+
+		executor.shutdown();
+
+		// Closing from an async task, we cannot wait for ourselves
+		if (Thread.currentThread().getName().startsWith(this.getExecutorThreadName()))
+			return;
+
+		try {
+			if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+				final int abandoned = executor.shutdownNow().size();
+
+				Common.log("Timed out waiting for database tasks to finish, " + abandoned + " queued task(s) were not run.");
+			}
+
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Return the name prefix for threads of the executor
+	 */
+	private String getExecutorThreadName() {
+		return this.getClass().getSimpleName() + " Database";
+	}
+
 	// --------------------------------------------------------------------
 	// Non-blocking checking
 	// --------------------------------------------------------------------
@@ -547,13 +1275,24 @@ public class SimpleDatabase {
 		Valid.checkBoolean(isLoaded(), "Connection was never established");
 	}
 
+	/*
+	 * Checks if the connect() function was called and the database is up,
+	 * failing fast without waiting for a connection if it is down
+	 */
+	private void checkAvailable() {
+		checkEstablished();
+
+		if (!this.healthy)
+			throw new DatabaseUnavailableException("Database is unavailable, reconnecting in the background");
+	}
+
 	/**
 	 * Return true if the connect function was called so that the driver was loaded
 	 *
 	 * @return
 	 */
 	public final boolean isLoaded() {
-		return connection != null;
+		return connectionProvider != null;
 	}
 
 	// --------------------------------------------------------------------
@@ -585,6 +1324,14 @@ public class SimpleDatabase {
 		return sql.replace("{table}", getTable());
 	}
 
+	/**
+	 * Runs statements of a batch from the given index inclusive to the other exclusive
+	 */
+	@FunctionalInterface
+	private interface BatchChunk {
+		void execute(Connection connection, int from, int to) throws SQLException;
+	}
+
 	/**
 	 * Stores last known credentials from the connect() functions
 	 */
@@ -613,4 +1360,4 @@ public class SimpleDatabase {
 		 */
 		private final String table;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,19 +1,62 @@
 package org.mineacademy.bfo.database;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 import org.mineacademy.bfo.ChatUtil;
 import org.mineacademy.bfo.Common;
+import org.mineacademy.bfo.FileUtil;
 import org.mineacademy.bfo.MathUtil;
 import org.mineacademy.bfo.collection.SerializedMap;
+import org.mineacademy.bfo.collection.SerializedMapCodec;
+import org.mineacademy.bfo.collection.expiringmap.ExpiringMap;
+import org.mineacademy.bfo.constants.FoConstants;
 import org.mineacademy.bfo.debug.Debugger;
 import org.mineacademy.bfo.debug.LagCatcher;
+import org.mineacademy.bfo.plugin.SimplePlugin;
+import org.mineacademy.bfo.remain.Remain;
 import org.mineacademy.bfo.settings.SimpleSettings;
 
 import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import net.md_5.bungee.api.event.LoginEvent;
+import net.md_5.bungee.api.event.PlayerDisconnectEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
+import net.md_5.bungee.event.EventHandler;
+import net.md_5.bungee.event.EventPriority;
 
 /**
  * Represents a simple database where values are flattened and stored
@@ -21,16 +64,24 @@ import lombok.NonNull;
  * <p>
  * The table structure is as follows:
  * <p>
- * UUID varchar(64) | Name text       | Data text      | Updated bigint
- * ------------------------------------------------------------
- * Player's uuid    | Last known name | {json data}    | Date of last save call
+ * UUID varchar(64) | Name text       | Data text or mediumblob | Updated bigint
+ * primary key      |                 |                         | indexed
+ * ---------------------------------------------------------------------------
+ * Player's uuid    | Last known name | {json or binary data}   | Date of last save call
+ * <p>
+ * Data is mediumblob when {@link #isBinaryData()} is enabled. Tables created
+ * by older versions are migrated when connecting.
  * <p>
  * We use JSON to flatten those values and provide convenience methods
  * onLoad and onSave for you to override so that you can easily save/load data to MySQL.
+ * See {@link #isBinaryData()} to store a smaller binary format instead.
  * <p>
  * Also see getExpirationDays(), by default we remove values not touched
  * within the last 90 days.
  * <p>
+ * Instead of connecting to MySQL, you can also store the data in a local file
+ * using {@link #connectLocal(String)} or anywhere else using {@link #connect(FlatStorage)}.
+ * <p>
  * For a less-restricting solution see {@link SimpleDatabase} however you will
  * need to run own queries and implement own table structure that requires MySQL
  * command syntax knowledge.
@@ -40,10 +91,110 @@ import lombok.NonNull;
 public abstract class SimpleFlatDatabase<T> extends SimpleDatabase {
 
 	/**
-	 * An internal flag to prevent dead lock so that we do not call any
-	 * more queries within the {@link #load(UUID, Object)} or {@link #save(UUID, Object)} methods
+	 * How many unique ids to put in one WHERE UUID IN (...) query
+	 */
+	private static final int IN_BATCH_SIZE = 500;
+
+	/**
+	 * Locks so that loads and saves of the same player wait for each other
+	 * while other players are loaded and saved at the same time, picked by
+	 * the hash of the unique id
+	 */
+	private final Lock[] playerLocks = new Lock[64];
+
+	/**
+	 * How many saves finished for players of each lock, so that batch loads
+	 * can tell a row they read may be outdated
+	 */
+	private final AtomicLongArray playerSaves = new AtomicLongArray(playerLocks.length);
+
+	{
+		for (int i = 0; i < playerLocks.length; i++)
+			playerLocks[i] = new ReentrantLock();
+	}
+
+	/**
+	 * Whether UUID is the primary key so rows can be written in one upsert,
+	 * false if migrating an old table failed
+	 */
+	private volatile boolean hasPrimaryKey = false;
+
+	/**
+	 * Whether the Data column stores binary data, false if converting
+	 * an old table failed
+	 */
+	private volatile boolean binaryColumn = false;
+
+	/**
+	 * Connected databases with write-behind enabled, see {@link #flushAll()}
+	 */
+	private static final Set<SimpleFlatDatabase<?>> writeBehindDatabases = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Rows saved but not yet written to the database when write-behind is enabled,
+	 * only the last save of each player is kept
+	 */
+	private final Map<UUID, DirtyRow> dirtyRows = new ConcurrentHashMap<>();
+
+	/**
+	 * Held while writing dirty rows so flushes do not overlap
+	 */
+	private final Object flushLock = new Object();
+
+	/**
+	 * Held while writing to the journal
+	 */
+	private final Object journalLock = new Object();
+
+	/**
+	 * The open journal writer, or null if not yet opened
+	 */
+	private BufferedWriter journalWriter;
+
+	/**
+	 * The file stream behind the journal writer, used to force it to the disk
+	 */
+	private FileOutputStream journalStream;
+
+	/**
+	 * Whether forcing the journal to the disk is scheduled, see {@link LogFileStorage.SyncPolicy#INTERVAL}
+	 */
+	private boolean journalSyncScheduled = false;
+
+	/**
+	 * The storage used instead of MySQL, or null if using MySQL
+	 */
+	private volatile FlatStorage storage;
+
+	/**
+	 * Incremented to stop the running purge of old entries
+	 */
+	private final AtomicInteger purgeGeneration = new AtomicInteger();
+
+	/**
+	 * The next batch of the purge of old entries, or null if not running
+	 */
+	private volatile ScheduledTask purgeTask;
+
+	/**
+	 * The task flushing dirty rows periodically, or null if not running
+	 */
+	private ScheduledTask flushTask;
+
+	/**
+	 * Data of players fetched when they logged in, waiting for {@link #load(UUID, Object)}
+	 */
+	private final Map<UUID, SerializedMap> prefetchedData = ExpiringMap.builder().expiration(30, TimeUnit.SECONDS).build();
+
+	/**
+	 * The listener prefetching data on login, or null if not registered
+	 */
+	private PrefetchListener prefetchListener;
+
+	/**
+	 * The listener writing saved rows of players leaving, or null if not registered
 	 */
-	private boolean isQuerying = false;
+	private FlushListener flushListener;
 
 	/**
 	 * Creates the table if it does not exist
@@ -54,18 +205,202 @@ public abstract class SimpleFlatDatabase<T> extends SimpleDatabase {
 	protected final void onConnected() {
 
 		// First, see if the database exists, create it if not
-		update("CREATE TABLE IF NOT EXISTS {table}(UUID varchar(64), Name text, Data text, Updated bigint)");
+		update("CREATE TABLE IF NOT EXISTS {table}(UUID varchar(64) NOT NULL, Name text, Data " + (isBinaryData() ? "mediumblob" : "text") + ", Updated bigint, PRIMARY KEY (UUID), INDEX Updated_Index (Updated))");
 
-		// Remove entries that have not been updated in the last X days
+		// Add keys to tables created by older versions
+		migrateTable();
+
+		// Remove entries that have not been updated in the last X days, in the background
 		removeOldEntries();
 
+		// Write rows saved before a crash and start flushing periodically, once
+		if (isWriteBehind() && flushTask == null) {
+			replayJournal();
+			flush();
+
+			flushTask = Common.runTimerAsync(getWriteBehindIntervalTicks(), getWriteBehindIntervalTicks(), this::flush);
+			writeBehindDatabases.add(this);
+
+			if (flushListener == null) {
+				flushListener = new FlushListener();
+
+				Common.registerEvents(flushListener);
+			}
+		}
+
+		if (isPrefetchOnLogin() && prefetchListener == null) {
+			prefetchListener = new PrefetchListener();
+
+			Common.registerEvents(prefetchListener);
+		}
+
 		// Call any hooks
 		onConnectFinish();
 	}
 
+	/*
+	 * Add the primary key on UUID and the index on Updated if the table lacks them,
+	 * and convert the Data column to binary if enabled
+	 */
+	private void migrateTable() {
+		boolean primaryKey = false;
+		boolean updatedIndex = false;
+
+		try {
+			final ResultSet indexes = query("SHOW INDEX FROM {table}");
+
+			while (indexes != null && indexes.next()) {
+				final String column = indexes.getString("Column_name");
+
+				if ("PRIMARY".equals(indexes.getString("Key_name")) && "UUID".equalsIgnoreCase(column))
+					primaryKey = true;
+
+				else if ("Updated".equalsIgnoreCase(column) && indexes.getInt("Seq_in_index") == 1)
+					updatedIndex = true;
+			}
+
+		} catch (final SQLException ex) {
+			Common.error(ex, "Failed to read indexes of database table " + getTable() + ", assuming it has none.");
+		}
+
+		if (!primaryKey)
+			try {
+				Common.log("Adding a primary key to database table " + getTable() + ", this may take a while on large tables...");
+
+				// Keep the most recently saved row of each player, numbering the rows
+				// temporarily to keep only one of the rows saved at the same time
+				update("DELETE FROM {table} WHERE UUID IS NULL");
+				update("ALTER TABLE {table} ADD COLUMN Migration_Id bigint NOT NULL AUTO_INCREMENT UNIQUE");
+				update("DELETE older FROM {table} older JOIN {table} newer ON older.UUID = newer.UUID"
+						+ " AND (COALESCE(older.Updated, 0) < COALESCE(newer.Updated, 0)"
+						+ " OR COALESCE(older.Updated, 0) = COALESCE(newer.Updated, 0) AND older.Migration_Id < newer.Migration_Id)");
+				update("ALTER TABLE {table} DROP COLUMN Migration_Id, MODIFY UUID varchar(64) NOT NULL, ADD PRIMARY KEY (UUID)");
+
+				primaryKey = true;
+
+			} catch (final Throwable t) {
+
+				// Remove the row numbers if we failed after adding them so we can try again next time
+				try {
+					update("ALTER TABLE {table} DROP COLUMN Migration_Id");
+
+				} catch (final Throwable ignored) {
+				}
+
+				Common.error(t,
+						"Failed to add a primary key to database table " + getTable() + ", saving will check if rows exist first.",
+						"Remove rows with duplicated UUIDs manually to fix this.",
+						"Error: %error");
+			}
+
+		if (!updatedIndex)
+			try {
+				update("CREATE INDEX Updated_Index ON {table} (Updated)");
+
+			} catch (final Throwable t) {
+				Common.error(t, "Failed to index database table " + getTable() + ", removing old entries will be slower.", "Error: %error");
+			}
+
+		hasPrimaryKey = primaryKey;
+
+		boolean binary = isBinaryData();
+
+		if (binary)
+			try {
+				final ResultSet column = query("SHOW COLUMNS FROM {table} LIKE 'Data'");
+
+				if (column != null && column.next() && column.getString("Type").toLowerCase().contains("text")) {
+					Common.log("Converting data in database table " + getTable() + " to binary, this may take a while on large tables...");
+
+					// Rows keep their JSON which is read until they are saved again
+					update("ALTER TABLE {table} MODIFY Data mediumblob");
+				}
+
+			} catch (final Throwable t) {
+				Common.error(t, "Failed to convert data in database table " + getTable() + " to binary, data will be saved as JSON.", "Error: %error");
+
+				binary = false;
+			}
+
+		binaryColumn = binary;
+	}
+
+	/**
+	 * Store data in a local file in the {@link FoConstants.File#LOCAL_DATABASES} folder
+	 * of your plugin instead of MySQL, see {@link LogFileStorage}
+	 *
+	 * @param name the file name without extension, such as your table name
+	 */
+	public final void connectLocal(final String name) {
+		connectLocal(name, LogFileStorage.SyncPolicy.INTERVAL);
+	}
+
+	/**
+	 * Store data in a local file in the {@link FoConstants.File#LOCAL_DATABASES} folder
+	 * of your plugin instead of MySQL, see {@link LogFileStorage}
+	 *
+	 * @param name the file name without extension, such as your table name
+	 * @param syncPolicy when to force writes to the disk
+	 */
+	public final void connectLocal(final String name, final LogFileStorage.SyncPolicy syncPolicy) {
+		final File file = FileUtil.getFile(FoConstants.File.LOCAL_DATABASES + "/" + name + ".db");
+
+		try {
+			connect(new LogFileStorage(file, syncPolicy));
+
+		} catch (final IOException ex) {
+			Common.logFramed(
+					"Failed to open local database",
+					"File: " + file,
+					"Error: " + ex.getMessage());
+
+			Remain.sneaky(ex);
+		}
+	}
+
+	/**
+	 * Store data in the given storage instead of MySQL, closing the previous storage
+	 * if any. Old entries are removed in the background, see {@link #getExpirationDays()}
+	 *
+	 * @param storage
+	 */
+	public final void connect(@NonNull final FlatStorage storage) {
+		final FlatStorage previous = this.storage;
+
+		if (previous != null)
+			previous.close();
+
+		this.storage = storage;
+
+		final long threshold = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(getExpirationDays());
+
+		Common.runLaterAsync(20, () -> {
+			try {
+				final int removed = storage.removeOlderThan(threshold);
+
+				if (removed > 0)
+					Common.log("Removed " + removed + " entries not saved in the last " + getExpirationDays() + " days.");
+
+			} catch (final IOException ex) {
+				Common.error(ex, "Failed to remove old entries from local database.", "Error: %error");
+			}
+		});
+
+		onConnectFinish();
+	}
+
+	/**
+	 * Return true if connected to MySQL or a storage so that we can load and save data
+	 *
+	 * @return
+	 */
+	public final boolean isReady() {
+		return storage != null || isLoaded();
+	}
+
 	/**
 	 * You can override this to run code after the connection was made and
-	 * the table created as well as purged ({@link #removeOldEntries()})
+	 * the table created, old entries are then still being purged ({@link #removeOldEntries()})
 	 */
 	protected void onConnectFinish() {
 	}
@@ -73,11 +408,101 @@ public abstract class SimpleFlatDatabase<T> extends SimpleDatabase {
 	/**
 	 * Remove entries that have not been updated (called {@link #save(Identifiable)} method) for the
 	 * last given X amount of days
+	 * <p>
+	 * Rows are deleted in batches of {@link #getPurgeBatchSize()} with pauses between them
+	 * on a background task so that the table is never locked for long
 	 */
 	private void removeOldEntries() {
 		final long threshold = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(getExpirationDays());
 
-		update("DELETE FROM {table} WHERE Updated < " + threshold + "");
+		// Stop a purge still running from a previous connection
+		final int generation = purgeGeneration.incrementAndGet();
+
+		schedulePurge(generation, threshold, 0, 20);
+	}
+
+	/*
+	 * Run the next purge batch after the given delay
+	 */
+	private void schedulePurge(final int generation, final long threshold, final int purged, final int delayTicks) {
+		purgeTask = Common.runLaterAsync(delayTicks, () -> purgeBatch(generation, threshold, purged));
+	}
+
+	/*
+	 * Delete one batch of old entries and schedule the next one if there may be more
+	 */
+	private void purgeBatch(final int generation, final long threshold, int purged) {
+		if (generation != purgeGeneration.get())
+			return;
+
+		if (!isConnected()) {
+			Common.log("Stopped removing old entries from " + getTable() + " because the database is unavailable, removed " + purged + " so far.");
+
+			return;
+		}
+
+		final int batchSize = Math.max(1, getPurgeBatchSize());
+		final int deleted;
+
+		try {
+			deleted = update("DELETE FROM {table} WHERE Updated < ? LIMIT ?", threshold, batchSize);
+
+		} catch (final Throwable t) {
+			Common.error(t,
+					"Failed to remove old entries from MySQL, removed " + purged + " before failing.",
+					"Error: %error");
+
+			return;
+		}
+
+		purged += deleted;
+
+		if (deleted >= batchSize)
+			schedulePurge(generation, threshold, purged, getPurgePauseTicks());
+
+		else {
+			purgeTask = null;
+
+			if (purged > 0)
+				Common.log("Removed " + purged + " entries from " + getTable() + " not saved in the last " + getExpirationDays() + " days.");
+		}
+	}
+
+	/*
+	 * Stop removing old entries
+	 */
+	private void cancelPurge() {
+		purgeGeneration.incrementAndGet();
+
+		final ScheduledTask task = purgeTask;
+
+		if (task != null) {
+			task.cancel();
+
+			purgeTask = null;
+		}
+	}
+
+	/**
+	 * Return how many old entries to delete at once
+	 * <p>
+	 * Default: 1000
+	 *
+	 * @return
+	 */
+	protected int getPurgeBatchSize() {
+		return 1_000;
+	}
+
+	/**
+	 * Return how long to pause between deleting batches of old entries, in ticks
+	 * <p>
+	 * Default: 10 (half a second)
+	 *
+	 * @return
+	 */
+	protected int getPurgePauseTicks() {
+		return 10;
 	}
 
 	/**
@@ -93,6 +518,83 @@ public abstract class SimpleFlatDatabase<T> extends SimpleDatabase {
 		return 90;
 	}
 
+	/**
+	 * Return how often to write saved data to the database, in ticks.
+	 * <p>
+	 * When above 0, {@link #save(String, UUID, Object)} only remembers the data
+	 * and writes it to a journal file, and saving the same player again replaces
+	 * it. All saved rows are then written together in one batch every interval,
+	 * when the player leaves the network, when you call {@link #flush()} or
+	 * {@link #flush(UUID)}, on {@link #close()} and when the plugin disables.
+	 * Rows in the journal are written when connecting again after a crash,
+	 * see {@link #getJournalSyncPolicy()} for how soon they reach the disk.
+	 * <p>
+	 * Default: 0 to write each save right away
+	 *
+	 * @return
+	 */
+	protected int getWriteBehindIntervalTicks() {
+		return 0;
+	}
+
+	/**
+	 * Return the journal file keeping rows not yet written to the database
+	 *
+	 * @return
+	 */
+	protected File getJournalFile() {
+		return FileUtil.getFile("journal/" + getTable() + ".log");
+	}
+
+	/**
+	 * Return when to force rows written to the journal to the disk, see
+	 * {@link #getWriteBehindIntervalTicks()}. Rows are always handed over to the
+	 * operating system right away so they survive the server crashing, forcing
+	 * them to the disk makes them also survive the machine losing power.
+	 * <p>
+	 * Default: {@link LogFileStorage.SyncPolicy#INTERVAL} forcing at most once a second
+	 *
+	 * @return
+	 */
+	protected LogFileStorage.SyncPolicy getJournalSyncPolicy() {
+		return LogFileStorage.SyncPolicy.INTERVAL;
+	}
+
+	/**
+	 * Return true to start loading data of players as soon as they log in,
+	 * see {@link #prefetch(LoginEvent)}
+	 * <p>
+	 * Default: false
+	 *
+	 * @return
+	 */
+	protected boolean isPrefetchOnLogin() {
+		return false;
+	}
+
+	/**
+	 * Return true to store data in the binary format of {@link SerializedMapCodec}
+	 * in a mediumblob column instead of JSON, which is several times smaller for
+	 * large data and faster to load. Existing tables are converted when connecting,
+	 * rows saved as JSON before are still read and become binary when saved again.
+	 * <p>
+	 * Data in local storage, see {@link #connect(FlatStorage)}, are always JSON.
+	 * <p>
+	 * Default: false
+	 *
+	 * @return
+	 */
+	protected boolean isBinaryData() {
+		return false;
+	}
+
+	/*
+	 * Return true if saves are written later
+	 */
+	private boolean isWriteBehind() {
+		return getWriteBehindIntervalTicks() > 0;
+	}
+
 	/**
 	 * Load the data for the given unique ID and his cache
 	 *
@@ -100,28 +602,39 @@ public abstract class SimpleFlatDatabase<T> extends SimpleDatabase {
 	 * @param cache
 	 */
 	public final void load(final UUID uuid, final T cache) {
-		if (!isLoaded() || isQuerying)
+		if (!isReady())
 			return;
 
+		final Lock lock = getPlayerLock(uuid);
+		lock.lock();
+
 		try {
 			LagCatcher.start("mysql");
-			isQuerying = true;
 
 			Debugger.debug("mysql", "---------------- MySQL - Loading data for " + uuid);
 
-			final ResultSet resultSet = query("SELECT * FROM {table} WHERE UUID='" + uuid + "'");
-			final String dataRaw = resultSet.next() ? resultSet.getString("Data") : "{}";
-			Debugger.debug("mysql", "JSON: " + dataRaw);
+			final DirtyRow pending = dirtyRows.get(uuid);
+			final SerializedMap data;
+
+			final SerializedMap prefetched = prefetchedData.remove(uuid);
+
+			// Use data saved but not yet written
+			if (pending != null)
+				data = pending.toSerializedMap();
+
+			// Use data fetched when the player logged in
+			else if (prefetched != null)
+				data = prefetched;
+
+			// Read from the local storage or the database
+			else
+				data = readStored(uuid);
 
-			final SerializedMap data = SerializedMap.fromJson(dataRaw);
 			Debugger.debug("mysql", "Deserialized data: " + data);
 
 			// Call the user specified load method
 			onLoad(data, cache);
 
-			// Close connection at the end
-			resultSet.close();
-
 		} catch (final Throwable t) {
 			Common.error(t,
 					"Failed to load data from MySQL!",
@@ -129,10 +642,200 @@ public abstract class SimpleFlatDatabase<T> extends SimpleDatabase {
 					"Error: %error");
 
 		} finally {
-			isQuerying = false;
+			lock.unlock();
+
+			logPerformance("loading");
+		}
+	}
+
+	/**
+	 * Load the data for the given unique ID and his cache on the database
+	 * executor, the future completes with the cache once loaded
+	 *
+	 * @param uuid
+	 * @param cache
+	 * @return
+	 */
+	public final CompletableFuture<T> loadAsync(final UUID uuid, final T cache) {
+		return this.supplyAsync(() -> {
+			this.load(uuid, cache);
+
+			return cache;
+		});
+	}
+
+	/**
+	 * Start loading the data of the player logging in on the database executor,
+	 * so that {@link #load(UUID, Object)} called soon after does not have to
+	 * wait for the database. The login only waits if loading is still running
+	 * when other listeners finish.
+	 * <p>
+	 * Called automatically if {@link #isPrefetchOnLogin()} is true, otherwise you can
+	 * call this from your own LoginEvent listener. Prefetched data is kept for 30 seconds.
+	 *
+	 * @param event
+	 */
+	public final void prefetch(@NonNull final LoginEvent event) {
+		final UUID uuid = event.getConnection().getUniqueId();
+
+		if (uuid == null || event.isCancelled() || !isLoaded())
+			return;
+
+		event.registerIntent(SimplePlugin.getInstance());
+
+		prefetch(uuid).whenComplete((ignored, error) -> event.completeIntent(SimplePlugin.getInstance()));
+	}
+
+	/**
+	 * Start loading the data of the given player on the database executor,
+	 * see {@link #prefetch(LoginEvent)}
+	 *
+	 * @param uuid
+	 * @return
+	 */
+	public final CompletableFuture<Void> prefetch(@NonNull final UUID uuid) {
+
+		// Local storage reads are fast enough
+		if (storage != null)
+			return CompletableFuture.completedFuture(null);
+
+		return this.runAsync(() -> {
+			final Lock lock = getPlayerLock(uuid);
+			lock.lock();
+
+			try {
+				final ResultSet resultSet = query("SELECT Data FROM {table} WHERE UUID=?", uuid.toString());
+
+				prefetchedData.put(uuid, resultSet != null && resultSet.next() ? readData(resultSet) : new SerializedMap());
+
+			} catch (final Throwable t) {
+				Common.error(t,
+						"Failed to prefetch data from MySQL!",
+						"UUID: " + uuid,
+						"Error: %error");
+
+			} finally {
+				lock.unlock();
+			}
+		});
+	}
+
+	/**
+	 * Load the data for all given unique IDs, querying them in batches
+	 * instead of one query per player. Use this after a restart when many
+	 * players join at once.
+	 * <p>
+	 * {@link #onLoad(SerializedMap, Object)} is called for every unique id, with empty
+	 * data for players not yet stored, in the cache the given function returns.
+	 *
+	 * @param uuids
+	 * @param cacheGetter returns the cache to load the data into for the given unique id
+	 */
+	public final void loadAll(@NonNull final Collection<UUID> uuids, @NonNull final Function<UUID, T> cacheGetter) {
+		if (!isReady() || uuids.isEmpty())
+			return;
+
+		final List<UUID> uniqueIds = new ArrayList<>(new LinkedHashSet<>(uuids));
+
+		for (int from = 0; from < uniqueIds.size(); from += IN_BATCH_SIZE)
+			loadChunk(uniqueIds.subList(from, Math.min(uniqueIds.size(), from + IN_BATCH_SIZE)), cacheGetter);
+	}
+
+	/**
+	 * Runs {@link #loadAll(Collection, Function)} on the database executor
+	 *
+	 * @param uuids
+	 * @param cacheGetter
+	 * @return
+	 */
+	public final CompletableFuture<Void> loadAllAsync(@NonNull final Collection<UUID> uuids, @NonNull final Function<UUID, T> cacheGetter) {
+		return this.runAsync(() -> this.loadAll(uuids, cacheGetter));
+	}
+
+	/*
+	 * Load the data of the given players using one query
+	 */
+	private void loadChunk(final List<UUID> chunk, final Function<UUID, T> cacheGetter) {
+		final Map<UUID, SerializedMap> rows = new HashMap<>();
+
+		// Rows of players saved after this point are read again below
+		final long[] savesBefore = new long[playerLocks.length];
+
+		for (int i = 0; i < savesBefore.length; i++)
+			savesBefore[i] = playerSaves.get(i);
+
+		try {
+			LagCatcher.start("mysql");
+
+			final FlatStorage storage = this.storage;
 
+			if (storage != null)
+				for (final UUID uuid : chunk) {
+					final String json = storage.read(uuid);
+
+					if (json != null)
+						rows.put(uuid, SerializedMap.fromJson(json));
+				}
+
+			else {
+				final Object[] parameters = new Object[chunk.size()];
+
+				for (int i = 0; i < chunk.size(); i++)
+					parameters[i] = chunk.get(i).toString();
+
+				final ResultSet resultSet = query("SELECT UUID, Data FROM {table} WHERE UUID IN (" + Common.join(chunk, ", ", uuid -> "?") + ")", parameters);
+
+				while (resultSet != null && resultSet.next())
+					rows.put(UUID.fromString(resultSet.getString("UUID")), readData(resultSet));
+			}
+
+			if (Debugger.isDebugged("mysql"))
+				Debugger.debug("mysql", "---------------- MySQL - Loaded " + rows.size() + " stored rows for " + chunk.size() + " players");
+
+		} catch (final Throwable t) {
+			Common.error(t,
+					"Failed to load data of " + chunk.size() + " players from MySQL!",
+					"Error: %error");
+
+			return;
+
+		} finally {
 			logPerformance("loading");
 		}
+
+		for (final UUID uuid : chunk) {
+			final Lock lock = getPlayerLock(uuid);
+			lock.lock();
+
+			try {
+				final int index = getPlayerLockIndex(uuid);
+
+				// Data saved but not yet written is newer than what we read
+				final DirtyRow pending = dirtyRows.get(uuid);
+				final SerializedMap data;
+
+				if (pending != null)
+					data = pending.toSerializedMap();
+
+				// A save may have finished after our query, read this player again
+				else if (playerSaves.get(index) != savesBefore[index])
+					data = readStored(uuid);
+
+				else
+					data = rows.get(uuid);
+
+				onLoad(data == null ? new SerializedMap() : data, cacheGetter.apply(uuid));
+
+			} catch (final Throwable t) {
+				Common.error(t,
+						"Failed to load data from MySQL!",
+						"UUID: " + uuid,
+						"Error: %error");
+
+			} finally {
+				lock.unlock();
+			}
+		}
 	}
 
 	/**
@@ -154,31 +857,52 @@ public abstract class SimpleFlatDatabase<T> extends SimpleDatabase {
 	 * @param cache
 	 */
 	public final void save(final String name, final UUID uuid, final T cache) {
-		if (!isLoaded() || isQuerying)
+		if (!isReady())
 			return;
 
+		final Lock lock = getPlayerLock(uuid);
+		lock.lock();
+
 		try {
 			LagCatcher.start("mysql");
-			isQuerying = true;
 
 			// Save using the user configured save method
 			final SerializedMap data = onSave(cache);
 
-			Debugger.debug("mysql", "---------------- MySQL - Saving data for " + uuid);
-			Debugger.debug("mysql", "Raw data: " + data);
-			Debugger.debug("mysql", "JSON: " + (data == null ? "null" : data.toJson()));
+			// Prefetched data is now outdated
+			prefetchedData.remove(uuid);
+
+			if (Debugger.isDebugged("mysql")) {
+				Debugger.debug("mysql", "---------------- MySQL - Saving data for " + uuid);
+				Debugger.debug("mysql", "Raw data: " + data);
+				Debugger.debug("mysql", "JSON: " + (data == null ? "null" : data.toJson()));
+			}
+
+			// Write to the local storage
+			if (storage != null)
+				storage.write(uuid, name, data == null || data.isEmpty() ? null : data.toJson(), System.currentTimeMillis());
+
+			// Write later
+			else if (isWriteBehind())
+				markDirty(new DirtyRow(uuid, name, data == null || data.isEmpty() ? null : encodeData(data), System.currentTimeMillis()));
 
 			// Remove data if empty
-			if (data == null || data.isEmpty()) {
-				update("DELETE FROM {table} WHERE UUID= '" + uuid + "';");
+			else if (data == null || data.isEmpty()) {
+				update("DELETE FROM {table} WHERE UUID=?", uuid.toString());
 
 				if (Debugger.isDebugged("mysql"))
 					Debugger.debug("mysql", "Data was empty, row has been removed.");
 
-			} else if (isStored(uuid))
-				update("UPDATE {table} SET Data='" + data.toJson() + "', Updated='" + System.currentTimeMillis() + "' WHERE UUID='" + uuid + "';");
+			} else if (hasPrimaryKey)
+				update("INSERT INTO {table}(UUID, Name, Data, Updated) VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE Name=VALUES(Name), Data=VALUES(Data), Updated=VALUES(Updated)",
+						uuid.toString(), name, toColumnValue(encodeData(data)), System.currentTimeMillis());
+
+			else if (isStored(uuid))
+				update("UPDATE {table} SET Data=?, Updated=? WHERE UUID=?", toColumnValue(encodeData(data)), System.currentTimeMillis(), uuid.toString());
 			else
-				update("INSERT INTO {table}(UUID, Name, Data, Updated) VALUES ('" + uuid + "', '" + name + "', '" + data.toJson() + "', '" + System.currentTimeMillis() + "');");
+				update("INSERT INTO {table}(UUID, Name, Data, Updated) VALUES (?, ?, ?, ?)", uuid.toString(), name, toColumnValue(encodeData(data)), System.currentTimeMillis());
+
+			playerSaves.incrementAndGet(getPlayerLockIndex(uuid));
 
 		} catch (final Throwable ex) {
 			Common.error(ex,
@@ -187,12 +911,407 @@ public abstract class SimpleFlatDatabase<T> extends SimpleDatabase {
 					"Error: %error");
 
 		} finally {
-			isQuerying = false;
+			lock.unlock();
 
 			logPerformance("saving");
 		}
 	}
 
+	/**
+	 * Save the data for the given name, unique ID and his cache on the database executor
+	 * <p>
+	 * Note that {@link #onSave(Object)} is then called on the database thread too
+	 *
+	 * @param name
+	 * @param uuid
+	 * @param cache
+	 * @return
+	 */
+	public final CompletableFuture<Void> saveAsync(final String name, final UUID uuid, final T cache) {
+		return this.runAsync(() -> this.save(name, uuid, cache));
+	}
+
+	/**
+	 * Write all saved rows to the database now, keeping them for the next
+	 * flush if it fails or the database is down
+	 */
+	public final void flush() {
+		if (!isConnected() || dirtyRows.isEmpty())
+			return;
+
+		flushRows(new ArrayList<>(dirtyRows.values()));
+	}
+
+	/**
+	 * Write the saved row of the given player to the database now, if any
+	 *
+	 * @param uuid
+	 */
+	public final void flush(@NonNull UUID uuid) {
+		final DirtyRow row = dirtyRows.get(uuid);
+
+		if (isConnected() && row != null)
+			flushRows(Arrays.asList(row));
+	}
+
+	/**
+	 * Write saved rows of all connected databases with write-behind enabled,
+	 * called automatically when the plugin disables
+	 */
+	public static void flushAll() {
+		for (final SimpleFlatDatabase<?> database : writeBehindDatabases)
+			try {
+				database.flush();
+
+			} catch (final Throwable t) {
+				Common.error(t, "Failed to write saved rows of database " + database.getClass().getSimpleName() + ".", "Error: %error");
+			}
+	}
+
+	/**
+	 * Write saved rows before the connection is closed
+	 */
+	@Override
+	protected final void onClose() {
+		writeBehindDatabases.remove(this);
+		cancelPurge();
+
+		if (flushTask != null) {
+			flushTask.cancel();
+
+			flushTask = null;
+		}
+
+		flush();
+
+		synchronized (journalLock) {
+			closeJournalWriter();
+		}
+
+		final FlatStorage storage = this.storage;
+
+		if (storage != null) {
+			this.storage = null;
+
+			storage.close();
+		}
+	}
+
+	/*
+	 * Remember the row to write later and append it to the journal
+	 */
+	private void markDirty(DirtyRow row) {
+		dirtyRows.put(row.uuid, row);
+
+		synchronized (journalLock) {
+			try {
+				if (journalWriter == null) {
+					final File file = getJournalFile();
+
+					file.getParentFile().mkdirs();
+
+					journalStream = new FileOutputStream(file, true);
+					journalWriter = new BufferedWriter(new OutputStreamWriter(journalStream, StandardCharsets.UTF_8));
+				}
+
+				journalWriter.write(row.toJournalLine());
+				journalWriter.newLine();
+
+				// Hand over to the OS so the row survives the server crashing
+				journalWriter.flush();
+
+				// And force to the disk so it survives losing power
+				final LogFileStorage.SyncPolicy syncPolicy = getJournalSyncPolicy();
+
+				if (syncPolicy == LogFileStorage.SyncPolicy.ALWAYS)
+					journalStream.getChannel().force(false);
+
+				else if (syncPolicy == LogFileStorage.SyncPolicy.INTERVAL && !journalSyncScheduled) {
+					journalSyncScheduled = true;
+
+					Common.runLaterAsync(20, this::syncJournal);
+				}
+
+			} catch (final IOException ex) {
+				Common.error(ex, "Failed to write " + row.uuid + " to the database journal, it will only be kept in memory until the next flush.");
+			}
+		}
+
+		if (Debugger.isDebugged("mysql"))
+			Debugger.debug("mysql", "Data will be written later, " + dirtyRows.size() + " row(s) are waiting.");
+	}
+
+	/*
+	 * Force rows written to the journal to the disk
+	 */
+	private void syncJournal() {
+		synchronized (journalLock) {
+			journalSyncScheduled = false;
+
+			if (journalStream != null)
+				try {
+					journalStream.getChannel().force(false);
+
+				} catch (final IOException ex) {
+					Common.error(ex, "Failed to force the database journal to the disk.");
+				}
+		}
+	}
+
+	/*
+	 * Write the given rows, forgetting those not saved again meanwhile
+	 */
+	private void flushRows(List<DirtyRow> rows) {
+		synchronized (flushLock) {
+			try {
+				LagCatcher.start("mysql");
+
+				writeRows(rows);
+
+				for (final DirtyRow row : rows)
+					dirtyRows.remove(row.uuid, row);
+
+				compactJournal();
+
+			} catch (final Throwable t) {
+				Common.error(t,
+						"Failed to write " + rows.size() + " saved row(s) to MySQL, will try again on next flush.",
+						"Error: %error");
+
+			} finally {
+				logPerformance("flushing");
+			}
+		}
+	}
+
+	/*
+	 * Write the given rows in one transaction using batches
+	 */
+	private void writeRows(List<DirtyRow> rows) throws SQLException {
+		try (Connection connection = borrowConnection()) {
+			final boolean upsert = hasPrimaryKey;
+			final Set<UUID> stored = upsert ? new HashSet<>() : findStored(connection, rows);
+
+			connection.setAutoCommit(false);
+
+			try (PreparedStatement delete = connection.prepareStatement(replaceVariables("DELETE FROM {table} WHERE UUID=?"));
+					PreparedStatement update = connection.prepareStatement(replaceVariables("UPDATE {table} SET Data=?, Updated=? WHERE UUID=?"));
+					PreparedStatement insert = connection.prepareStatement(replaceVariables("INSERT INTO {table}(UUID, Name, Data, Updated) VALUES (?, ?, ?, ?)"
+							+ (upsert ? " ON DUPLICATE KEY UPDATE Name=VALUES(Name), Data=VALUES(Data), Updated=VALUES(Updated)" : "")))) {
+
+				for (final DirtyRow row : rows)
+					if (row.data == null) {
+						delete.setString(1, row.uuid.toString());
+						delete.addBatch();
+
+					} else if (stored.contains(row.uuid)) {
+						update.setObject(1, toColumnValue(row.data));
+						update.setLong(2, row.updated);
+						update.setString(3, row.uuid.toString());
+						update.addBatch();
+
+					} else {
+						insert.setString(1, row.uuid.toString());
+						insert.setString(2, row.name);
+						insert.setObject(3, toColumnValue(row.data));
+						insert.setLong(4, row.updated);
+						insert.addBatch();
+					}
+
+				delete.executeBatch();
+				update.executeBatch();
+				insert.executeBatch();
+
+				connection.commit();
+
+			} catch (final SQLException | RuntimeException ex) {
+				connection.rollback();
+
+				throw ex;
+
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	/*
+	 * Return which of the given rows already exist in the database
+	 */
+	private Set<UUID> findStored(Connection connection, List<DirtyRow> rows) throws SQLException {
+		final Set<UUID> stored = new HashSet<>();
+
+		for (int from = 0; from < rows.size(); from += IN_BATCH_SIZE) {
+			final List<DirtyRow> chunk = rows.subList(from, Math.min(rows.size(), from + IN_BATCH_SIZE));
+			final String placeholders = Common.join(chunk, ", ", row -> "?");
+
+			try (PreparedStatement statement = connection.prepareStatement(replaceVariables("SELECT UUID FROM {table} WHERE UUID IN (" + placeholders + ")"))) {
+				for (int i = 0; i < chunk.size(); i++)
+					statement.setString(i + 1, chunk.get(i).uuid.toString());
+
+				try (ResultSet resultSet = statement.executeQuery()) {
+					while (resultSet.next())
+						stored.add(UUID.fromString(resultSet.getString("UUID")));
+				}
+			}
+		}
+
+		return stored;
+	}
+
+	/*
+	 * Read rows saved but not written before the last shutdown
+	 */
+	private void replayJournal() {
+		final File file = getJournalFile();
+
+		if (!file.exists())
+			return;
+
+		int replayed = 0;
+
+		try {
+			for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				final DirtyRow row = DirtyRow.fromJournalLine(line);
+
+				// Skip a line cut off by a crash
+				if (row != null) {
+					dirtyRows.put(row.uuid, row);
+
+					replayed++;
+				}
+			}
+
+		} catch (final IOException ex) {
+			Common.error(ex, "Failed to read database journal " + file + ", rows saved before the last shutdown may be lost.");
+		}
+
+		if (replayed > 0)
+			Common.log("Writing " + dirtyRows.size() + " row(s) from the database journal not written before the last shutdown.");
+	}
+
+	/*
+	 * Rewrite the journal with rows still waiting, or delete it if none are
+	 */
+	private void compactJournal() throws IOException {
+		synchronized (journalLock) {
+			closeJournalWriter();
+
+			final File file = getJournalFile();
+
+			if (dirtyRows.isEmpty()) {
+				Files.deleteIfExists(file.toPath());
+
+				return;
+			}
+
+			final List<String> lines = new ArrayList<>();
+
+			for (final DirtyRow row : dirtyRows.values())
+				lines.add(row.toJournalLine());
+
+			final Path temporary = file.toPath().resolveSibling(file.getName() + ".tmp");
+
+			// Force to the disk before replacing so the journal is never lost half written
+			try (FileOutputStream stream = new FileOutputStream(temporary.toFile())) {
+				final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+
+				for (final String line : lines) {
+					writer.write(line);
+					writer.newLine();
+				}
+
+				writer.flush();
+				stream.getChannel().force(false);
+			}
+
+			Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/*
+	 * Close the journal writer if open
+	 */
+	private void closeJournalWriter() {
+		if (journalWriter != null) {
+			try {
+				journalWriter.close();
+
+			} catch (final IOException ex) {
+				ex.printStackTrace();
+			}
+
+			journalWriter = null;
+			journalStream = null;
+		}
+	}
+
+	/*
+	 * Encode the data in the format of the Data column
+	 */
+	private byte[] encodeData(final SerializedMap data) {
+		return binaryColumn ? SerializedMapCodec.encode(data) : data.toJson().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Return the encoded data as bytes if binary, or as JSON string
+	 */
+	private static Object toColumnValue(final byte[] data) {
+		return SerializedMapCodec.isEncoded(data) ? data : new String(data, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Read the Data column of the current row, binary or JSON
+	 */
+	private static SerializedMap readData(final ResultSet resultSet) throws SQLException {
+		final Object raw = resultSet.getObject("Data");
+
+		if (raw == null)
+			return new SerializedMap();
+
+		if (raw instanceof byte[])
+			return SerializedMapCodec.decode((byte[]) raw);
+
+		if (raw instanceof Blob) {
+			final Blob blob = (Blob) raw;
+
+			return SerializedMapCodec.decode(blob.getBytes(1, (int) blob.length()));
+		}
+
+		return SerializedMap.fromJson(raw.toString());
+	}
+
+	/*
+	 * Return the lock for loading and saving the given player
+	 */
+	private Lock getPlayerLock(final UUID uuid) {
+		return playerLocks[getPlayerLockIndex(uuid)];
+	}
+
+	/*
+	 * Return the index of the lock for the given player
+	 */
+	private int getPlayerLockIndex(final UUID uuid) {
+		return (uuid.hashCode() & Integer.MAX_VALUE) % playerLocks.length;
+	}
+
+	/*
+	 * Read the stored data of the given player from the local storage or the database
+	 */
+	private SerializedMap readStored(final UUID uuid) throws IOException, SQLException {
+		final FlatStorage storage = this.storage;
+
+		if (storage != null) {
+			final String json = storage.read(uuid);
+
+			return json == null ? new SerializedMap() : SerializedMap.fromJson(json);
+		}
+
+		try (ResultSet resultSet = query("SELECT Data FROM {table} WHERE UUID=?", uuid.toString())) {
+			return resultSet.next() ? readData(resultSet) : new SerializedMap();
+		}
+	}
+
 	/**
 	 * Utility method to finish LagCatcher mysql measure and log
 	 * if there was some lag, or if we detected mysql being run
@@ -212,7 +1331,7 @@ public abstract class SimpleFlatDatabase<T> extends SimpleDatabase {
 	 * @throws SQLException
 	 */
 	private boolean isStored(@NonNull final UUID uuid) throws SQLException {
-		final ResultSet resultSet = query("SELECT * FROM {table} WHERE UUID= '" + uuid.toString() + "'");
+		final ResultSet resultSet = query("SELECT UUID FROM {table} WHERE UUID=? LIMIT 1", uuid.toString());
 
 		if (resultSet == null)
 			return false;
@@ -232,4 +1351,109 @@ public abstract class SimpleFlatDatabase<T> extends SimpleDatabase {
 	 * @return
 	 */
 	protected abstract SerializedMap onSave(T data);
+
+	/**
+	 * Prefetches data of players logging in
+	 */
+	public final class PrefetchListener implements Listener {
+
+		/*
+		 * Listen as late as possible so we do not load players other listeners deny
+		 */
+		@EventHandler(priority = EventPriority.HIGHEST)
+		public void onLogin(final LoginEvent event) {
+			prefetch(event);
+		}
+	}
+
+	/**
+	 * Writes saved rows of players leaving the network
+	 */
+	public final class FlushListener implements Listener {
+
+		/*
+		 * Listen as late as possible so that rows saved by other listeners are included
+		 */
+		@EventHandler(priority = EventPriority.HIGHEST)
+		public void onDisconnect(final PlayerDisconnectEvent event) {
+			final UUID uuid = event.getPlayer().getUniqueId();
+
+			if (dirtyRows.containsKey(uuid))
+				runAsync(() -> flush(uuid));
+		}
+	}
+
+	/**
+	 * A row saved but not yet written to the database
+	 */
+	@RequiredArgsConstructor
+	private static final class DirtyRow {
+
+		/**
+		 * The player's unique id
+		 */
+		private final UUID uuid;
+
+		/**
+		 * Last known name
+		 */
+		private final String name;
+
+		/**
+		 * The data encoded for the Data column, or null to remove the row
+		 */
+		private final byte[] data;
+
+		/**
+		 * When the row was saved
+		 */
+		private final long updated;
+
+		/*
+		 * Decode the data of this row
+		 */
+		private SerializedMap toSerializedMap() {
+			return this.data == null ? new SerializedMap() : SerializedMapCodec.decode(this.data);
+		}
+
+		/*
+		 * Return this row as one line, values are encoded so they cannot contain tabs
+		 */
+		private String toJournalLine() {
+			return this.uuid + "\t" + this.updated + "\t" + encode(this.name == null ? null : this.name.getBytes(StandardCharsets.UTF_8)) + "\t" + encode(this.data);
+		}
+
+		/*
+		 * Return the row from the given line, or null if malformed
+		 */
+		private static DirtyRow fromJournalLine(String line) {
+			final String[] parts = line.split("\t");
+
+			if (parts.length != 4)
+				return null;
+
+			try {
+				final byte[] name = decode(parts[2]);
+
+				return new DirtyRow(UUID.fromString(parts[0]), name == null ? null : new String(name, StandardCharsets.UTF_8), decode(parts[3]), Long.parseLong(parts[1]));
+
+			} catch (final IllegalArgumentException ex) {
+				return null;
+			}
+		}
+
+		/*
+		 * Encode the value using base64, null is stored as -
+		 */
+		private static String encode(byte[] value) {
+			return value == null ? "-" : Base64.getEncoder().encodeToString(value);
+		}
+
+		/*
+		 * Decode the value from encode
+		 */
+		private static byte[] decode(String value) {
+			return "-".equals(value) ? null : Base64.getDecoder().decode(value);
+		}
+	}
 }
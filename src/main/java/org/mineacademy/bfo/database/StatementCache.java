@@ -0,0 +1,155 @@
+package org.mineacademy.bfo.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Keeps prepared statements open for each connection so that repeated queries
+ * are not parsed again, evicting the least recently used ones when full.
+ * <p>
+ * Statements are cached on the physical connection behind the pool so they
+ * survive returning the connection. Since a connection is only borrowed by one
+ * thread at a time, so is each of its statements.
+ */
+final class StatementCache {
+
+	/**
+	 * Cached statements by the physical connection and then by sql
+	 */
+	private final Map<Connection, Map<String, PreparedStatement>> statements = new IdentityHashMap<>();
+
+	/**
+	 * How many statements to keep for each connection
+	 */
+	private final int capacity;
+
+	/**
+	 * Create a new cache keeping the given amount of statements per connection
+	 *
+	 * @param capacity
+	 */
+	StatementCache(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Return a cached statement for the given borrowed connection and sql with
+	 * its parameters cleared, or prepare a new one. Do not close the statement.
+	 *
+	 * @param connection
+	 * @param sql
+	 * @return
+	 * @throws SQLException
+	 */
+	PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+		final Connection physical = unwrap(connection);
+		final Map<String, PreparedStatement> connectionStatements;
+
+		synchronized (this) {
+			Map<String, PreparedStatement> existing = this.statements.get(physical);
+
+			// A new connection was opened, forget old ones the pool closed since
+			if (existing == null) {
+				this.purgeClosed();
+
+				existing = this.newLruMap();
+				this.statements.put(physical, existing);
+			}
+
+			connectionStatements = existing;
+		}
+
+		// Only the thread holding the connection reaches here, no locking needed below
+		PreparedStatement statement = connectionStatements.get(sql);
+
+		if (statement != null && !statement.isClosed()) {
+			statement.clearParameters();
+			statement.clearBatch();
+
+			return statement;
+		}
+
+		statement = physical.prepareStatement(sql);
+		connectionStatements.put(sql, statement);
+
+		return statement;
+	}
+
+	/**
+	 * Forget statements of connections that have been closed
+	 */
+	synchronized void purgeClosed() {
+		for (final Iterator<Entry<Connection, Map<String, PreparedStatement>>> it = this.statements.entrySet().iterator(); it.hasNext();)
+			try {
+				if (it.next().getKey().isClosed())
+					it.remove();
+
+			} catch (final SQLException ex) {
+				it.remove();
+			}
+	}
+
+	/**
+	 * Close all cached statements
+	 */
+	synchronized void clear() {
+		for (final Map<String, PreparedStatement> connectionStatements : this.statements.values())
+			for (final PreparedStatement statement : connectionStatements.values())
+				closeQuietly(statement);
+
+		this.statements.clear();
+	}
+
+	/*
+	 * Create a new map evicting and closing the least recently used statement when full
+	 */
+	private Map<String, PreparedStatement> newLruMap() {
+		return new LinkedHashMap<String, PreparedStatement>(16, 0.75F, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Entry<String, PreparedStatement> eldest) {
+				if (this.size() > StatementCache.this.capacity) {
+					closeQuietly(eldest.getValue());
+
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	/*
+	 * Return the physical connection behind pool proxies, or the connection itself
+	 */
+	private static Connection unwrap(Connection connection) {
+		try {
+			if (connection.isWrapperFor(Connection.class))
+				return connection.unwrap(Connection.class);
+
+		} catch (final SQLException ex) {
+			// Not a wrapper
+		}
+
+		return connection;
+	}
+
+	/*
+	 * Close the statement ignoring errors
+	 */
+	private static void closeQuietly(PreparedStatement statement) {
+		try {
+			statement.close();
+
+		} catch (final SQLException ex) {
+			// Connection already gone
+		}
+	}
+}
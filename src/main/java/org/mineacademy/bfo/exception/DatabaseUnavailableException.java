@@ -0,0 +1,17 @@
+package org.mineacademy.bfo.exception;
+
+/**
+ * Thrown when querying a database that did not answer the last health check,
+ * see {@link org.mineacademy.bfo.database.SimpleDatabase#isConnected()}.
+ * <p>
+ * This is thrown right away instead of waiting for a connection so that
+ * threads do not freeze while the database is down
+ */
+public final class DatabaseUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DatabaseUnavailableException(String message) {
+		super(message);
+	}
+}
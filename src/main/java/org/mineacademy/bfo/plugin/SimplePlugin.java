@@ -23,10 +23,14 @@ import org.mineacademy.bfo.ReflectionUtil;
 import org.mineacademy.bfo.Valid;
 import org.mineacademy.bfo.annotation.AutoRegister;
 import org.mineacademy.bfo.bungee.BungeeListener;
+import org.mineacademy.bfo.bungee.message.MessageBatcher;
+import org.mineacademy.bfo.bungee.message.MessageDispatcher;
+import org.mineacademy.bfo.bungee.message.PendingRequests;
 import org.mineacademy.bfo.collection.StrictList;
 import org.mineacademy.bfo.command.SimpleCommand;
 import org.mineacademy.bfo.command.SimpleCommandGroup;
 import org.mineacademy.bfo.command.SimpleSubCommand;
+import org.mineacademy.bfo.database.SimpleFlatDatabase;
 import org.mineacademy.bfo.debug.Debugger;
 import org.mineacademy.bfo.exception.FoException;
 import org.mineacademy.bfo.metrics.Metrics;
@@ -325,18 +329,39 @@ public abstract class SimplePlugin extends Plugin implements Listener {
 	@Override
 	public final void onDisable() {
 
+		// Finish handling received messages first so that rows they save
+		// and messages they send are flushed below
+		this.shutdownSafely("message dispatchers", MessageDispatcher::shutdownAll);
+
 		try {
 			this.onPluginStop();
 		} catch (final Throwable t) {
 			Common.log("&cPlugin might not shut down property. Got " + t.getClass().getSimpleName() + ": " + t.getMessage());
 		}
 
+		// Stop waiting for responses, send out messages still waiting in batches
+		// and write rows of databases saved but not yet written
+		this.shutdownSafely("pending requests", PendingRequests::cancelAll);
+		this.shutdownSafely("message batches", MessageBatcher::flushAll);
+		this.shutdownSafely("database writes", SimpleFlatDatabase::flushAll);
+
 		this.unregisterReloadables();
 
 		Objects.requireNonNull(instance, "Instance of " + this.getDataFolder().getName() + " already nulled!");
 		instance = null;
 	}
 
+	/*
+	 * Run the given shutdown step, logging its errors so the next steps still run
+	 */
+	private void shutdownSafely(String name, Runnable step) {
+		try {
+			step.run();
+		} catch (final Throwable t) {
+			Common.log("&cFailed to shut down " + name + " properly. Got " + t.getClass().getSimpleName() + ": " + t.getMessage());
+		}
+	}
+
 	// ----------------------------------------------------------------------------------------
 	// Delegate methods
 	// ----------------------------------------------------------------------------------------